@@ -0,0 +1,920 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Translates hot basic blocks into JVM bytecode, so that HotSpot can compile
+ * user code the same way it compiles Java code. Every generated class extends
+ * <tt>Processor.CompiledBlock</tt> and implements its <tt>run()</tt> method
+ * as a straight-line sequence of the block's instructions.
+ *
+ * <p>
+ * Simple arithmetic, logic, and shift instructions, loads and stores, and
+ * branches are expanded inline; everything else calls back into the threaded
+ * operation for that instruction. MIPS registers are kept in JVM locals, and
+ * a delayed load is written by the instruction after it without the
+ * processor's help. The registers and any delayed load not yet written go
+ * back to the processor before each call into the threaded code, and
+ * whenever the block is left, normally or by an exception, so the kernel sees
+ * exactly the same state whether or not a block was compiled.
+ *
+ * <p>
+ * <tt>Processor.runBlocks()</tt> only enters a compiled block in sequence
+ * and when no interrupt can become due before the block ends, so the
+ * generated code does not advance the simulated clock after each
+ * instruction; it counts the instructions it ran as it leaves. It returns to
+ * the processor under exactly the same conditions as the translated block
+ * would.
+ *
+ * <p>
+ * Classes are defined as hidden classes through
+ * <tt>MethodHandles.Lookup</tt>, found by reflection since the simulator
+ * itself only requires Java 8. Nachos forbids creating class loaders, so on
+ * a JVM without <tt>Lookup.defineHiddenClass()</tt> or
+ * <tt>Lookup.defineClass()</tt> no block is ever compiled.
+ */
+final class BlockCompiler {
+    /**
+     * Allocate a new block compiler.
+     *
+     * @param privilege encapsulates privileged access to the Nachos machine.
+     */
+    BlockCompiler(Privilege privilege) {
+        this.privilege = privilege;
+    }
+
+    /**
+     * Test whether this JVM can define the classes generated by this
+     * compiler.
+     *
+     * @return <tt>true</tt> if blocks can be compiled.
+     */
+    static boolean isAvailable() {
+        return defineHiddenClass != null || defineClass != null;
+    }
+
+    /**
+     * Compile the specified instructions, which must form a single
+     * translated block, and return a new instance of the generated class.
+     *
+     * @param code the decoded instructions of the block.
+     * @return the compiled block, or <tt>null</tt> if the block could not be
+     * compiled.
+     */
+    Processor.CompiledBlock compile(Processor.Decoded[] code) {
+        if (!isAvailable())
+            return null;
+
+        try {
+            final byte[] classFile = new Generator(code).generate();
+            if (classFile == null)
+                return null;
+
+            // never let the action throw, so privilege is always released
+            Object result = privilege.doPrivileged(new PrivilegedAction<Object>() {
+                public Object run() {
+                    try {
+                        return define(classFile);
+                    } catch (Throwable e) {
+                        return e;
+                    }
+                }
+            });
+
+            if (result instanceof Throwable)
+                throw (Throwable) result;
+
+            return (Processor.CompiledBlock)
+                ((MethodHandle) result).invokeWithArguments();
+        } catch (Exception e) {
+            Lib.debug(dbgCompiler, "block compilation failed: " + e);
+            return null;
+        } catch (Throwable e) {
+            Lib.debug(dbgCompiler, "block verification failed: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Define the class in this package, and return its constructor. Method
+     * handles are used instead of <tt>Method.invoke()</tt>, which eventually
+     * generates accessor classes in a class loader of its own.
+     */
+    private static MethodHandle define(byte[] classFile) throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> cls;
+
+        if (defineHiddenClass != null) {
+            lookup = (MethodHandles.Lookup)
+                defineHiddenClass.invokeWithArguments(lookup, classFile, true,
+                    noOptions);
+            cls = lookup.lookupClass();
+        } else {
+            cls = (Class<?>) defineClass.invokeWithArguments(lookup,
+                classFile);
+        }
+
+        return lookup.findConstructor(cls, MethodType.methodType(void.class));
+    }
+
+    /**
+     * Emits the class file for one block.
+     */
+    private class Generator {
+        Generator(Processor.Decoded[] code) {
+            this.code = code;
+        }
+
+        /**
+         * Return the class file, or <tt>null</tt> if the block is too large
+         * to be worth compiling.
+         */
+        byte[] generate() throws IOException {
+            int thisClass = classConstant(classPrefix + (serial++));
+            int superClass = classConstant(superName);
+
+            byte[] init = generateInit();
+            byte[] run = generateRun();
+            if (run.length > maxCodeLength)
+                return null;
+
+            int initName = utf8Constant("<init>");
+            int initType = utf8Constant("()V");
+            int runName = utf8Constant("run");
+            int runType = utf8Constant("([II)V");
+            int codeName = utf8Constant("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(classVersion);
+            out.writeShort(numConstants);
+            constants.flush();
+            constantBytes.writeTo(out);
+            out.writeShort(accFinal | accSuper);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);        // interfaces
+            out.writeShort(0);        // fields
+            out.writeShort(2);        // methods
+            writeMethod(out, 0, initName, initType, codeName, 1, 1, init,
+                new byte[0]);
+            writeMethod(out, accFinal, runName, runType, codeName,
+                maxStack, numLocals, run, handlers.toByteArray());
+            out.writeShort(0);        // attributes
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+
+        private void writeMethod(DataOutputStream out, int access, int name,
+                                 int type, int codeName, int stack,
+                                 int locals, byte[] bytecode,
+                                 byte[] exceptionTable)
+            throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + bytecode.length + exceptionTable.length);
+            out.writeShort(stack);
+            out.writeShort(locals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(exceptionTable.length / 8);
+            out.write(exceptionTable);
+            out.writeShort(0);        // attributes
+        }
+
+        private byte[] generateInit() {
+            bytecode = new ByteArrayOutputStream();
+            emit(ALOAD_0);
+            emit(INVOKESPECIAL);
+            emitShort(methodConstant(superName, "<init>", "()V"));
+            emit(RETURN);
+            return bytecode.toByteArray();
+        }
+
+        /**
+         * Generate <tt>void run(int[] registers, int vaddr)</tt>. Local 3
+         * holds the next PC computed by a branch, local 4 the value of a
+         * delayed load not yet written, local 5 an exception being passed
+         * on, and the locals from 6 up the registers the block uses.
+         *
+         * <p>
+         * The code is generated twice: the first pass only finds out which
+         * registers the block uses, so that the second can copy them all
+         * into locals as soon as the delayed load pending on entry is done.
+         */
+        private byte[] generateRun() {
+            generateBody();
+            return generateBody();
+        }
+
+        private byte[] generateBody() {
+            bytecode = new ByteArrayOutputStream();
+            handlers = new ByteArrayOutputStream();
+            sites.clear();
+
+            // whatever load is pending on entry is known only to the
+            // processor, until the first instruction finishes it
+            cached = false;
+            dirty = 0;
+            pendingTarget = -1;
+
+            for (int i = 0; i < code.length; i++) {
+                Processor.Decoded decoded = code[i];
+
+                switch (decoded.operation) {
+                    case Processor.Mips.ADD:
+                    case Processor.Mips.SUB:
+                    case Processor.Mips.SLL:
+                    case Processor.Mips.SRA:
+                    case Processor.Mips.SRL:
+                    case Processor.Mips.SLT:
+                    case Processor.Mips.AND:
+                    case Processor.Mips.OR:
+                    case Processor.Mips.NOR:
+                    case Processor.Mips.XOR:
+                    case Processor.Mips.LUI:
+                    case Processor.Mips.MFLO:
+                    case Processor.Mips.MFHI:
+                        generateAlu(decoded, i);
+                        break;
+
+                    case Processor.Mips.LOAD:
+                        generateLoad(decoded, i);
+                        break;
+
+                    case Processor.Mips.STORE:
+                        generateStore(decoded, i);
+                        break;
+
+                    case Processor.Mips.BEQ:
+                    case Processor.Mips.BNE:
+                    case Processor.Mips.BLEZ:
+                    case Processor.Mips.BGTZ:
+                    case Processor.Mips.BLTZ:
+                    case Processor.Mips.BGEZ:
+                    case Processor.Mips.JUMP:
+                        generateBranch(decoded);
+                        break;
+
+                    default:
+                        generateInterpret(i);
+                        break;
+                }
+            }
+
+            generateExit(code.length);
+
+            for (Site site : sites)
+                generateHandler(site);
+
+            return bytecode.toByteArray();
+        }
+
+        private void generateAlu(Processor.Decoded decoded, int index) {
+            boolean overflow = Lib.test(Processor.Mips.OVERFLOW, decoded.flags);
+            boolean writesDst = Lib.test(Processor.Mips.DST, decoded.flags) &&
+                decoded.dstReg != 0;
+
+            if (!writesDst && !overflow) {
+                // no side effects besides finishing the delayed load
+                finishLoad();
+                advancePC();
+                return;
+            }
+
+            switch (decoded.operation) {
+                case Processor.Mips.ADD:
+                    if (overflow) {
+                        emit(ALOAD_0);
+                        loadSources(decoded);
+                        invokeAt(index, "add", "(II)I");
+                    } else {
+                        loadSources(decoded);
+                        emit(IADD);
+                    }
+                    break;
+                case Processor.Mips.SUB:
+                    if (overflow) {
+                        emit(ALOAD_0);
+                        loadSources(decoded);
+                        invokeAt(index, "sub", "(II)I");
+                    } else {
+                        loadSources(decoded);
+                        emit(ISUB);
+                    }
+                    break;
+                case Processor.Mips.SLL:
+                    loadSrc2(decoded);
+                    loadSrc1(decoded);
+                    emit(ISHL);
+                    break;
+                case Processor.Mips.SRA:
+                    loadSrc2(decoded);
+                    loadSrc1(decoded);
+                    emit(ISHR);
+                    break;
+                case Processor.Mips.SRL:
+                    // shifts the sign-extended value, like the interpreter
+                    loadSrc2(decoded);
+                    emit(I2L);
+                    loadSrc1(decoded);
+                    pushInt(0x1F);
+                    emit(IAND);
+                    emit(LUSHR);
+                    emit(L2I);
+                    break;
+                case Processor.Mips.SLT:
+                    emit(ALOAD_0);
+                    loadSources(decoded);
+                    if (Lib.test(Processor.Mips.UNSIGNED, decoded.flags))
+                        invoke("sltu", "(II)I");
+                    else
+                        invoke("slt", "(II)I");
+                    break;
+                case Processor.Mips.AND:
+                    loadSources(decoded);
+                    emit(IAND);
+                    break;
+                case Processor.Mips.OR:
+                    loadSources(decoded);
+                    emit(IOR);
+                    break;
+                case Processor.Mips.NOR:
+                    loadSources(decoded);
+                    emit(IOR);
+                    emit(ICONST_M1);
+                    emit(IXOR);
+                    break;
+                case Processor.Mips.XOR:
+                    loadSources(decoded);
+                    emit(IXOR);
+                    break;
+                case Processor.Mips.LUI:
+                    pushInt(decoded.imm << 16);
+                    break;
+                case Processor.Mips.MFLO:
+                    loadRegister(Processor.regLo);
+                    break;
+                case Processor.Mips.MFHI:
+                    loadRegister(Processor.regHi);
+                    break;
+            }
+
+            // sources are read before the delayed load completes
+            finishLoad();
+
+            if (writesDst)
+                storeRegister(decoded.dstReg);
+            else
+                emit(POP);
+
+            advancePC();
+        }
+
+        private void generateLoad(Processor.Decoded decoded, int index) {
+            // readMem() already sign-extends, exactly like the interpreter
+            emit(ALOAD_0);
+            loadAddress(decoded);
+            pushInt(decoded.size);
+            invokeAt(index, "readMem", "(II)I");
+
+            finishLoad();
+
+            if (decoded.dstReg != 0) {
+                emitLocal(ISTORE, 4);
+                pendingTarget = decoded.dstReg;
+            } else {
+                emit(POP);
+            }
+
+            advancePC();
+        }
+
+        private void generateStore(Processor.Decoded decoded, int index) {
+            emit(ALOAD_0);
+            loadAddress(decoded);
+            pushInt(decoded.size);
+            loadRegister(decoded.rt);
+            invokeAt(index, "writeMem", "(III)V");
+
+            finishLoad();
+            advancePC();
+
+            // leave if the store hit this block's page
+            if (index + 1 < code.length) {
+                emit(ALOAD_0);
+                invoke("valid", "()Z");
+                generateExitUnless(index + 1);
+            }
+        }
+
+        private void generateBranch(Processor.Decoded decoded) {
+            if (decoded.operation == Processor.Mips.JUMP) {
+                if (decoded.format == Processor.Mips.RFMT) {
+                    loadRegister(decoded.rs);
+                } else {
+                    loadRegister(Processor.regNextPC);
+                    pushInt(0xF0000000);
+                    emit(IAND);
+                    pushInt(decoded.target << 2);
+                    emit(IOR);
+                }
+                emit(ISTORE_3);
+            } else {
+                loadRegister(decoded.rs);
+                switch (decoded.operation) {
+                    case Processor.Mips.BEQ:
+                        loadRegister(decoded.rt);
+                        emit(IF_ICMPEQ);
+                        break;
+                    case Processor.Mips.BNE:
+                        loadRegister(decoded.rt);
+                        emit(IF_ICMPNE);
+                        break;
+                    case Processor.Mips.BGEZ:
+                        emit(IFGE);
+                        break;
+                    case Processor.Mips.BGTZ:
+                        emit(IFGT);
+                        break;
+                    case Processor.Mips.BLEZ:
+                        emit(IFLE);
+                        break;
+                    case Processor.Mips.BLTZ:
+                        emit(IFLT);
+                        break;
+                }
+                int taken = bytecode.size() - 1;
+                emitShort(0);
+
+                loadRegister(Processor.regNextPC);
+                emit(ICONST_4);
+                emit(IADD);
+                emit(ISTORE_3);
+                emit(GOTO);
+                int done = bytecode.size() - 1;
+                emitShort(0);
+
+                patch(taken);
+                loadRegister(Processor.regNextPC);
+                pushInt(decoded.branchOffset);
+                emit(IADD);
+                emit(ISTORE_3);
+
+                patch(done);
+            }
+
+            finishLoad();
+
+            if (Lib.test(Processor.Mips.LINK, decoded.flags) &&
+                decoded.dstReg != 0) {
+                loadRegister(Processor.regNextPC);
+                emit(ICONST_4);
+                emit(IADD);
+                storeRegister(decoded.dstReg);
+            }
+
+            // PC = nextPC, nextPC = <branch target or fall-through>
+            loadRegister(Processor.regNextPC);
+            storeRegister(Processor.regPC);
+            emit(ILOAD_3);
+            storeRegister(Processor.regNextPC);
+        }
+
+        private void generateInterpret(int index) {
+            // the threaded operation works on the register array
+            if (cached) {
+                writeBack(dirty, pendingTarget);
+                cached = false;
+                dirty = 0;
+                pendingTarget = -1;
+            }
+
+            emit(ALOAD_0);
+            pushInt(index);
+            invokeAt(index, "interpret", "(I)V");
+
+            if (index + 1 < code.length) {
+                emit(ALOAD_0);
+                emit(ALOAD_1);
+                emit(ILOAD_2);
+                pushInt((index + 1) * 4);
+                emit(IADD);
+                invoke("follows", "([II)Z");
+                generateExitUnless(index + 1);
+            }
+        }
+
+        /**
+         * Leave the block after <i>ticks</i> instructions, unless the value
+         * on top of the stack is true.
+         */
+        private void generateExitUnless(int ticks) {
+            emit(IFNE);
+            int stay = bytecode.size() - 1;
+            emitShort(0);
+
+            generateExit(ticks);
+
+            patch(stay);
+        }
+
+        /**
+         * Leave the block after <i>ticks</i> instructions, with the
+         * registers and the delayed load back in the processor.
+         */
+        private void generateExit(int ticks) {
+            if (cached)
+                writeBack(dirty, pendingTarget);
+
+            emit(ALOAD_0);
+            pushInt(ticks);
+            invoke("ticks", "(I)V");
+            emit(RETURN);
+        }
+
+        /**
+         * Generate the code that passes on an exception thrown at a call
+         * site, after putting the processor in the same state
+         * <tt>runBlocks()</tt> would leave it in.
+         */
+        private void generateHandler(Site site) {
+            int handler = bytecode.size();
+
+            emitLocal(ASTORE, 5);
+            writeBack(site.modified, site.target);
+            emit(ALOAD_0);
+            pushInt(site.ticks);
+            invoke("ticks", "(I)V");
+            emitLocal(ALOAD, 5);
+            emit(ATHROW);
+
+            DataOutputStream out = new DataOutputStream(handlers);
+            try {
+                out.writeShort(site.start);
+                out.writeShort(site.end);
+                out.writeShort(handler);
+                out.writeShort(0);    // any exception
+            } catch (IOException e) {
+                Lib.assertNotReached();
+            }
+        }
+
+        /**
+         * Copy the modified registers back into the register array, and hand
+         * a delayed load not yet written to the processor.
+         */
+        private void writeBack(long modified, int target) {
+            for (int number = 1; number < registerLocal.length; number++) {
+                if ((modified & (1L << number)) != 0) {
+                    emit(ALOAD_1);
+                    pushInt(number);
+                    emitLocal(ILOAD, registerLocal[number]);
+                    emit(IASTORE);
+                }
+            }
+
+            if (target != -1) {
+                emit(ALOAD_0);
+                pushInt(target);
+                emitLocal(ILOAD, 4);
+                invoke("delayedLoad", "(II)V");
+            }
+        }
+
+        /**
+         * Complete the delayed load, if one is pending. The first time, and
+         * after every call to the interpreter, only the processor knows the
+         * load, so it does the work and the registers are copied into locals
+         * afterwards.
+         */
+        private void finishLoad() {
+            if (!cached) {
+                emit(ALOAD_0);
+                invoke("finishLoad", "()V");
+
+                for (int number = 1; number < registerLocal.length; number++) {
+                    if (registerLocal[number] != 0) {
+                        emit(ALOAD_1);
+                        pushInt(number);
+                        emit(IALOAD);
+                        emitLocal(ISTORE, registerLocal[number]);
+                    }
+                }
+
+                cached = true;
+            } else if (pendingTarget != -1) {
+                emitLocal(ILOAD, 4);
+                storeRegister(pendingTarget);
+                pendingTarget = -1;
+            }
+        }
+
+        private void advancePC() {
+            // PC = nextPC, nextPC += 4
+            loadRegister(Processor.regNextPC);
+            emit(DUP);
+            storeRegister(Processor.regPC);
+            emit(ICONST_4);
+            emit(IADD);
+            storeRegister(Processor.regNextPC);
+        }
+
+        private void loadSources(Processor.Decoded decoded) {
+            loadSrc1(decoded);
+            loadSrc2(decoded);
+        }
+
+        private void loadSrc1(Processor.Decoded decoded) {
+            if (Lib.test(Processor.Mips.SRC1SH, decoded.flags))
+                pushInt(decoded.sh);
+            else
+                loadRegister(decoded.rs);
+        }
+
+        private void loadSrc2(Processor.Decoded decoded) {
+            if (Lib.test(Processor.Mips.SRC2IMM, decoded.flags))
+                pushInt(decoded.imm);
+            else
+                loadRegister(decoded.rt);
+        }
+
+        private void loadAddress(Processor.Decoded decoded) {
+            loadRegister(decoded.rs);
+            pushInt(decoded.imm);
+            emit(IADD);
+        }
+
+        private void loadRegister(int number) {
+            if (number == 0) {
+                emit(ICONST_0);
+            } else if (cached) {
+                emitLocal(ILOAD, localFor(number));
+            } else {
+                localFor(number);
+                emit(ALOAD_1);
+                pushInt(number);
+                emit(IALOAD);
+            }
+        }
+
+        /**
+         * Pop the value on top of the stack into a register. Only called
+         * once the registers are in locals.
+         */
+        private void storeRegister(int number) {
+            Lib.assertTrue(cached && number != 0);
+
+            emitLocal(ISTORE, localFor(number));
+            dirty |= 1L << number;
+        }
+
+        private int localFor(int number) {
+            if (registerLocal[number] == 0)
+                registerLocal[number] = numLocals++;
+
+            return registerLocal[number];
+        }
+
+        private void invoke(String name, String type) {
+            emit(INVOKEVIRTUAL);
+            emitShort(methodConstant(superName, name, type));
+        }
+
+        /**
+         * Invoke a method that may throw, from the instruction at
+         * <i>index</i>.
+         */
+        private void invokeAt(int index, String name, String type) {
+            int start = bytecode.size();
+            invoke(name, type);
+
+            // nothing to tidy up if the exception leaves the first
+            // instruction with the processor holding everything
+            if (index > 0 || cached) {
+                sites.add(new Site(start, bytecode.size(), index,
+                    cached ? dirty : 0, cached ? pendingTarget : -1));
+            }
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                emit(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                emit(BIPUSH);
+                emit(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                emit(SIPUSH);
+                emitShort(value);
+            } else {
+                emit(LDC_W);
+                emitShort(intConstant(value));
+            }
+        }
+
+        /**
+         * Point the branch instruction at <i>at</i> to the current position.
+         */
+        private void patch(int at) {
+            byte[] code = bytecode.toByteArray();
+            int offset = code.length - at;
+            code[at + 1] = (byte) (offset >> 8);
+            code[at + 2] = (byte) offset;
+
+            bytecode.reset();
+            bytecode.write(code, 0, code.length);
+        }
+
+        private void emitLocal(int opcode, int local) {
+            emit(opcode);
+            emit(local);
+        }
+
+        private void emit(int b) {
+            bytecode.write(b);
+        }
+
+        private void emitShort(int s) {
+            bytecode.write(s >> 8);
+            bytecode.write(s);
+        }
+
+        private int utf8Constant(String s) {
+            return constant("U" + s, 1, s, 0, 0);
+        }
+
+        private int intConstant(int value) {
+            return constant("I" + value, 3, null, value, 0);
+        }
+
+        private int classConstant(String name) {
+            return constant("C" + name, 7, null, utf8Constant(name), -1);
+        }
+
+        private int methodConstant(String owner, String name, String type) {
+            int cls = classConstant(owner);
+            int nameAndType = constant("N" + name + type, 12, null,
+                utf8Constant(name), utf8Constant(type));
+            return constant("M" + owner + "." + name + type, 10, null, cls,
+                nameAndType);
+        }
+
+        /**
+         * Return the index of a constant pool entry, adding it if necessary.
+         * Class entries pass -1 as their second operand.
+         */
+        private int constant(String key, int tag, String utf8, int a, int b) {
+            Integer index = constantIndex.get(key);
+            if (index != null)
+                return index;
+
+            try {
+                constants.writeByte(tag);
+                if (utf8 != null)
+                    constants.writeUTF(utf8);
+                else if (tag == 3)
+                    constants.writeInt(a);
+                else if (b == -1)
+                    constants.writeShort(a);
+                else {
+                    constants.writeShort(a);
+                    constants.writeShort(b);
+                }
+            } catch (IOException e) {
+                Lib.assertNotReached();
+            }
+
+            constantIndex.put(key, numConstants);
+            return numConstants++;
+        }
+
+        private Processor.Decoded[] code;
+
+        /**
+         * The local holding each register, or 0 if the block does not use
+         * the register.
+         */
+        private int[] registerLocal = new int[Processor.numUserRegisters];
+        private int numLocals = firstRegisterLocal;
+        /**
+         * <tt>true</tt> once the registers have been copied into locals, and
+         * until the next call to the interpreter.
+         */
+        private boolean cached;
+        /**
+         * The registers written since they were copied into locals.
+         */
+        private long dirty;
+        /**
+         * The target of the delayed load held in local 4, or -1.
+         */
+        private int pendingTarget;
+        private ArrayList<Site> sites = new ArrayList<Site>();
+        private ByteArrayOutputStream handlers;
+
+        private ByteArrayOutputStream bytecode;
+        private ByteArrayOutputStream constantBytes =
+            new ByteArrayOutputStream();
+        private DataOutputStream constants =
+            new DataOutputStream(constantBytes);
+        private HashMap<String, Integer> constantIndex =
+            new HashMap<String, Integer>();
+        private int numConstants = 1;
+    }
+
+    /**
+     * A call that may throw, and what its exception handler must write back.
+     */
+    private static class Site {
+        Site(int start, int end, int ticks, long modified, int target) {
+            this.start = start;
+            this.end = end;
+            this.ticks = ticks;
+            this.modified = modified;
+            this.target = target;
+        }
+
+        final int start, end, ticks;
+        final long modified;
+        final int target;
+    }
+
+    private Privilege privilege;
+    private static int serial = 0;
+
+    private static MethodHandle defineHiddenClass = null, defineClass = null;
+    private static Object noOptions = null;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            Class<?> option = Class.forName(
+                "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noOptions = Array.newInstance(option, 0);
+            defineHiddenClass = lookup.findVirtual(MethodHandles.Lookup.class,
+                "defineHiddenClass",
+                MethodType.methodType(MethodHandles.Lookup.class, byte[].class,
+                    boolean.class, noOptions.getClass())).asFixedArity();
+        } catch (Exception e) {
+            try {
+                defineClass = lookup.findVirtual(MethodHandles.Lookup.class,
+                    "defineClass",
+                    MethodType.methodType(Class.class, byte[].class));
+            } catch (Exception e2) {
+            }
+        }
+    }
+
+    private static final String classPrefix = "nachos/machine/CompiledBlock$";
+    private static final String superName =
+        "nachos/machine/Processor$CompiledBlock";
+
+    /**
+     * Version 49 class files are verified without stack map frames.
+     */
+    private static final int classVersion = 49;
+    /**
+     * HotSpot does not compile methods longer than this.
+     */
+    private static final int maxCodeLength = 8000;
+    private static final int maxStack = 8;
+    private static final int firstRegisterLocal = 6;
+
+    private static final int accFinal = 0x0010, accSuper = 0x0020;
+
+    private static final int
+        ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_4 = 0x07,
+        BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+        ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, ASTORE = 0x3A,
+        ILOAD_2 = 0x1C, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B,
+        IALOAD = 0x2E, ISTORE_3 = 0x3E, IASTORE = 0x4F, POP = 0x57,
+        DUP = 0x59,
+        IADD = 0x60, ISUB = 0x64, ISHL = 0x78, ISHR = 0x7A, LUSHR = 0x7D,
+        IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2L = 0x85, L2I = 0x88,
+        IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E,
+        IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, GOTO = 0xA7, ILOAD_3 = 0x1D,
+        IFNE = 0x9A, RETURN = 0xB1, INVOKEVIRTUAL = 0xB6,
+        INVOKESPECIAL = 0xB7, ATHROW = 0xBF;
+
+    private static final char dbgCompiler = 'j';
+}
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,6 @@ public final class Interrupt {
         privilege.interrupt = new InterruptPrivilege();
 
         enabled = false;
-        pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -124,13 +122,109 @@ public final class Interrupt {
         Lib.assertTrue(when > 0);
 
         long time = privilege.stats.totalTicks + when;
-        PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-        Lib.debug(dbgInt,
-            "Scheduling the " + type +
+        if (Lib.test(dbgInt))
+            System.out.println("Scheduling the " + type +
                 " interrupt handler at time = " + time);
 
-        pending.add(toOccur);
+        add(time, numPendingInterruptsCreated++, slotFor(type, handler));
+    }
+
+    /**
+     * Return the handler slot for the specified type and handler, registering
+     * a new slot the first time the pair is seen. Devices always schedule the
+     * same few handlers, so after startup this never allocates.
+     */
+    private int slotFor(String type, Runnable handler) {
+        for (int i = 0; i < numSlots; i++) {
+            if (slotHandlers[i] == handler && slotTypes[i].equals(type))
+                return i;
+        }
+
+        if (numSlots == slotHandlers.length) {
+            slotHandlers = Arrays.copyOf(slotHandlers, numSlots * 2);
+            slotTypes = Arrays.copyOf(slotTypes, numSlots * 2);
+        }
+
+        slotHandlers[numSlots] = handler;
+        slotTypes[numSlots] = type;
+        return numSlots++;
+    }
+
+    /**
+     * Test whether pending interrupt <i>a</i> is due before pending interrupt
+     * <i>b</i>: earlier times first, and interrupts scheduled for the same
+     * time in the order they were scheduled.
+     */
+    private boolean before(int a, int b) {
+        return heapTimes[a] < heapTimes[b] ||
+            (heapTimes[a] == heapTimes[b] && heapIds[a] < heapIds[b]);
+    }
+
+    private void add(long time, long id, int slot) {
+        if (numPending == heapTimes.length) {
+            heapTimes = Arrays.copyOf(heapTimes, numPending * 2);
+            heapIds = Arrays.copyOf(heapIds, numPending * 2);
+            heapSlots = Arrays.copyOf(heapSlots, numPending * 2);
+        }
+
+        int i = numPending++;
+        set(i, time, id, slot);
+
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) / 4;
+            if (!before(i, parent))
+                break;
+
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /**
+     * Remove the first pending interrupt and return its handler slot.
+     */
+    private int removeFirst() {
+        int slot = heapSlots[0];
+
+        numPending--;
+        set(0, heapTimes[numPending], heapIds[numPending],
+            heapSlots[numPending]);
+
+        // sift down
+        int i = 0;
+        while (true) {
+            int first = i;
+            int child = i * 4 + 1;
+            for (int c = child; c < child + 4 && c < numPending; c++) {
+                if (before(c, first))
+                    first = c;
+            }
+
+            if (first == i)
+                break;
+
+            swap(i, first);
+            i = first;
+        }
+
+        return slot;
+    }
+
+    private void set(int i, long time, long id, int slot) {
+        heapTimes[i] = time;
+        heapIds[i] = id;
+        heapSlots[i] = slot;
+    }
+
+    private void swap(int i, int j) {
+        long time = heapTimes[i];
+        long id = heapIds[i];
+        int slot = heapSlots[i];
+
+        set(i, heapTimes[j], heapIds[j], heapSlots[j]);
+        set(j, time, id, slot);
     }
 
     private void tick(boolean inKernelMode) {
@@ -152,6 +246,58 @@ public final class Interrupt {
         enabled = true;
     }
 
+    /**
+     * Advance the simulated time as if the current thread had spun in a loop
+     * that disables and re-enables interrupts once per iteration, stopping
+     * just before the iteration whose tick would make the next pending
+     * interrupt due. The idle thread uses this to skip time in which no
+     * thread can run, without changing when any interrupt is delivered.
+     *
+     * <p>
+     * Does nothing if no interrupt is pending, or if interrupt debugging is
+     * enabled so that every tick is still shown.
+     */
+    public void skipIdleTicks() {
+        long ticks = ticksUntilNextInterrupt();
+        if (ticks == Long.MAX_VALUE || Lib.test(dbgInt))
+            return;
+
+        long skipped = (ticks - 1) / Stats.KernelTick * Stats.KernelTick;
+        if (skipped <= 0)
+            return;
+
+        Stats stats = privilege.stats;
+
+        stats.kernelTicks += skipped;
+        stats.totalTicks += skipped;
+    }
+
+    private long ticksUntilNextInterrupt() {
+        if (numPending == 0)
+            return Long.MAX_VALUE;
+
+        return heapTimes[0] - privilege.stats.totalTicks;
+    }
+
+    private void tickUser(long count) {
+        Lib.assertTrue(count >= 0 &&
+            count * Stats.UserTick < ticksUntilNextInterrupt());
+
+        // keep the per-tick debugging output
+        if (Lib.test(dbgInt)) {
+            for (long i = 0; i < count; i++)
+                tick(false);
+            return;
+        }
+
+        Stats stats = privilege.stats;
+
+        stats.userTicks += count * Stats.UserTick;
+        stats.totalTicks += count * Stats.UserTick;
+
+        enabled = true;
+    }
+
     private void checkIfDue() {
         long time = privilege.stats.totalTicks;
 
@@ -160,27 +306,21 @@ public final class Interrupt {
         if (Lib.test(dbgInt))
             print();
 
-        if (pending.isEmpty())
-            return;
-
-        if (((PendingInterrupt) pending.first()).time > time)
+        if (numPending == 0 || heapTimes[0] > time)
             return;
 
         Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-        while (!pending.isEmpty() &&
-            ((PendingInterrupt) pending.first()).time <= time) {
-            PendingInterrupt next = (PendingInterrupt) pending.first();
-            pending.remove(next);
-
-            Lib.assertTrue(next.time <= time);
+        while (numPending > 0 && heapTimes[0] <= time) {
+            int slot = removeFirst();
 
             if (privilege.processor != null)
                 privilege.processor.flushPipe();
 
-            Lib.debug(dbgInt, "  " + next.type);
+            if (Lib.test(dbgInt))
+                System.out.println("  " + slotTypes[slot]);
 
-            next.handler.run();
+            slotHandlers[slot].run();
         }
 
         Lib.debug(dbgInt, "  (end of list)");
@@ -191,44 +331,23 @@ public final class Interrupt {
             + ", interrupts " + (enabled ? "on" : "off"));
         System.out.println("Pending interrupts:");
 
-        for (Iterator i = pending.iterator(); i.hasNext(); ) {
-            PendingInterrupt toOccur = (PendingInterrupt) i.next();
-            System.out.println("  " + toOccur.type +
-                ", scheduled at " + toOccur.time);
-        }
+        // the heap is only partially ordered, so sort a copy
+        Integer[] order = new Integer[numPending];
+        for (int i = 0; i < numPending; i++)
+            order[i] = i;
 
-        System.out.println("  (end of list)");
-    }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
+            }
+        });
 
-    private class PendingInterrupt implements Comparable {
-        PendingInterrupt(long time, String type, Runnable handler) {
-            this.time = time;
-            this.type = type;
-            this.handler = handler;
-            this.id = numPendingInterruptsCreated++;
+        for (int i = 0; i < numPending; i++) {
+            System.out.println("  " + slotTypes[heapSlots[order[i]]] +
+                ", scheduled at " + heapTimes[order[i]]);
         }
 
-        public int compareTo(Object o) {
-            PendingInterrupt toOccur = (PendingInterrupt) o;
-
-            // can't return 0 for unequal objects, so check all fields
-            if (time < toOccur.time)
-                return -1;
-            else if (time > toOccur.time)
-                return 1;
-            else if (id < toOccur.id)
-                return -1;
-            else if (id > toOccur.id)
-                return 1;
-            else
-                return 0;
-        }
-
-        long time;
-        String type;
-        Runnable handler;
-
-        private long id;
+        System.out.println("  (end of list)");
     }
 
     private long numPendingInterruptsCreated = 0;
@@ -236,7 +355,24 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts, kept as a 4-ary min-heap in parallel arrays: the
+     * time each is due, the order in which it was scheduled, and the slot of
+     * its handler.
+     */
+    private long[] heapTimes = new long[16];
+    private long[] heapIds = new long[16];
+    private int[] heapSlots = new int[16];
+    private int numPending = 0;
+
+    /**
+     * The type and handler of every interrupt ever scheduled, indexed by
+     * slot.
+     */
+    private Runnable[] slotHandlers = new Runnable[8];
+    private String[] slotTypes = new String[8];
+    private int numSlots = 0;
 
     private static final char dbgInt = 'i';
 
@@ -248,5 +384,13 @@ public final class Interrupt {
         public void tick(boolean inKernelMode) {
             Interrupt.this.tick(inKernelMode);
         }
+
+        public long ticksUntilNextInterrupt() {
+            return Interrupt.this.ticksUntilNextInterrupt();
+        }
+
+        public void tickUser(long count) {
+            Interrupt.this.tickUser(count);
+        }
     }
 }
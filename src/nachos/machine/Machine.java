@@ -305,6 +305,16 @@ public final class Machine {
         return timer;
     }
 
+    /**
+     * Return the statistics printed when Nachos terminates. The kernel may
+     * fill in the statistics that describe its own behavior.
+     *
+     * @return the machine statistics.
+     */
+    public static Stats stats() {
+        return stats;
+    }
+
     /**
      * Return the hardware elevator bank.
      *
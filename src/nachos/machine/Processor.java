@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +48,45 @@ public final class Processor {
             registers[i] = 0;
 
         mainMemory = new byte[pageSize * numPhysPages];
+        decodeCache = new Decoded[numPhysPages][];
+        blockCache = new Block[numPhysPages][];
+
+        String mode = Config.getString("Processor.executionMode",
+            "interpreter");
+        if (mode.equals("interpreter"))
+            executionMode = modeInterpreter;
+        else if (mode.equals("threaded"))
+            executionMode = modeThreaded;
+        else if (mode.equals("jit"))
+            executionMode = modeJIT;
+        else
+            Lib.assertNotReached("unknown Processor.executionMode: " + mode);
+
+        if (executionMode == modeJIT) {
+            jitThreshold = Config.getInteger("Processor.jitThreshold", 1000);
+            Lib.assertTrue(jitThreshold > 0);
+
+            if (BlockCompiler.isAvailable())
+                compiler = new BlockCompiler(privilege);
+            else
+                System.out.print(" (no JIT)");
+        }
 
         if (usingTLB) {
+            tlbSize = Config.getInteger("Processor.tlbSize", 4);
+            Lib.assertTrue(tlbSize > 0);
+
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
                 translations[i] = new TranslationEntry();
+
+            int numBuckets = 1;
+            while (numBuckets < tlbSize * 2)
+                numBuckets *= 2;
+
+            tlbBuckets = new int[numBuckets];
+            Arrays.fill(tlbBuckets, -1);
+            tlbChain = new int[tlbSize];
         } else {
             translations = null;
         }
@@ -82,6 +118,22 @@ public final class Processor {
 
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Depending on the <tt>Processor.executionMode</tt> configuration key,
+     * instructions are either interpreted one at a time
+     * (<tt>interpreter</tt>, the default), run from translated basic blocks
+     * (<tt>threaded</tt>), or run from translated basic blocks of which the
+     * hottest are compiled to JVM bytecode (<tt>jit</tt>). All modes produce
+     * exactly the same results; the interpreter is always used when
+     * disassembly or processor debugging is enabled.
+     *
+     * <p>
+     * Unless disassembly or processor debugging is enabled, the simulated
+     * clock is advanced in batches: instructions that cannot make an
+     * interrupt due only count their ticks, and the ticks are added to
+     * <tt>Stats</tt> before the next interrupt handler or exception handler
+     * runs. Interrupts are therefore delivered at exactly the same times.
      */
     public void run() {
         Lib.debug(dbgProcessor, "starting program in current thread");
@@ -90,6 +142,15 @@ public final class Processor {
 
         Machine.autoGrader().runProcessor(privilege);
 
+        boolean debugging = Lib.test(dbgProcessor) ||
+            Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+
+        batchTicks = !debugging;
+        tickBudget = 0;
+
+        if (executionMode != modeInterpreter && !debugging)
+            runBlocks();
+
         Instruction inst = new Instruction();
 
         while (true) {
@@ -99,7 +160,100 @@ public final class Processor {
                 e.handle();
             }
 
-            privilege.interrupt.tick(false);
+            tick();
+        }
+    }
+
+    /**
+     * Advance the simulated clock after a user instruction. Same as
+     * <tt>privilege.interrupt.tick(false)</tt>, except that while no
+     * interrupt can become due the tick is only counted.
+     */
+    private void tick() {
+        if (tickBudget > 0) {
+            tickBudget--;
+            deferredTicks++;
+            return;
+        }
+
+        flushTicks();
+
+        privilege.interrupt.tick(false);
+
+        if (batchTicks) {
+            tickBudget = (privilege.interrupt.ticksUntilNextInterrupt() - 1) /
+                Stats.UserTick;
+        }
+    }
+
+    /**
+     * Add the counted ticks to the simulated clock. Called before any kernel
+     * code can observe the time.
+     */
+    private void flushTicks() {
+        if (deferredTicks > 0) {
+            privilege.interrupt.tickUser(deferredTicks);
+            deferredTicks = 0;
+        }
+    }
+
+    /**
+     * Run translated basic blocks starting at the current PC. Never returns.
+     *
+     * <p>
+     * Only the first instruction of each block is fetched through
+     * <tt>translate()</tt>; a block never crosses a page boundary, so the
+     * remaining instructions share its translation. A block is left as soon
+     * as the PC stops following it (a taken branch, or an exception handler
+     * that moved the PC), as soon as an interrupt handler has run (it may have
+     * switched threads or changed the page table), or as soon as user code
+     * stores into the block's page.
+     *
+     * <p>
+     * In <tt>jit</tt> mode, a block entered <tt>Processor.jitThreshold</tt>
+     * times is compiled, and from then on runs as JVM bytecode with the same
+     * exit conditions whenever no interrupt can become due before the block
+     * ends and the block is not entered in a delay slot; otherwise it runs
+     * translated, as before. Exceptions leave compiled
+     * code exactly where they would leave a translated block, with the PC and
+     * nextPC registers pointing at the faulting instruction.
+     */
+    private void runBlocks() {
+        while (true) {
+            try {
+                int vaddr = registers[regPC];
+                Block block = blockAt(translateFetch(vaddr));
+
+                pipeFlushed = false;
+
+                if (compiler != null && block.compiled == null &&
+                    ++block.entries == jitThreshold)
+                    block.compiled = compile(block);
+
+                if (block.compiled != null &&
+                    tickBudget >= block.ops.length &&
+                    registers[regNextPC] == vaddr + 4) {
+                    block.compiled.run(registers, vaddr);
+                    continue;
+                }
+
+                for (int i = 0; ; ) {
+                    block.ops[i].run();
+
+                    tick();
+
+                    vaddr += 4;
+                    if (++i == block.ops.length || pipeFlushed ||
+                        !block.valid || registers[regPC] != vaddr)
+                        break;
+                }
+
+                continue;
+            } catch (MipsException e) {
+                e.handle();
+            }
+
+            tick();
         }
     }
 
@@ -173,6 +327,9 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+
+        fetchTLB.flush();
+        dataTLB.flush();
     }
 
     /**
@@ -213,7 +370,65 @@ public final class Processor {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
 
+        unlinkTLBEntry(number);
         translations[number] = new TranslationEntry(entry);
+        linkTLBEntry(number);
+
+        fetchTLB.flush();
+        dataTLB.flush();
+    }
+
+    /**
+     * Remove the specified TLB entry from the chain of its hash bucket, if it
+     * is on one.
+     *
+     * @param number the index into the TLB.
+     */
+    private void unlinkTLBEntry(int number) {
+        TranslationEntry entry = translations[number];
+        if (!entry.valid)
+            return;
+
+        int bucket = entry.vpn & (tlbBuckets.length - 1);
+        if (tlbBuckets[bucket] == number) {
+            tlbBuckets[bucket] = tlbChain[number];
+            return;
+        }
+
+        for (int i = tlbBuckets[bucket]; ; i = tlbChain[i]) {
+            if (tlbChain[i] == number) {
+                tlbChain[i] = tlbChain[number];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add the specified TLB entry to the chain of its hash bucket, if it is
+     * valid. Chains are kept in index order, so that when several entries map
+     * the same virtual page, the lowest numbered one is found first, exactly
+     * as by a linear search of the TLB.
+     *
+     * @param number the index into the TLB.
+     */
+    private void linkTLBEntry(int number) {
+        TranslationEntry entry = translations[number];
+        if (!entry.valid)
+            return;
+
+        int bucket = entry.vpn & (tlbBuckets.length - 1);
+        if (tlbBuckets[bucket] < 0 || tlbBuckets[bucket] > number) {
+            tlbChain[number] = tlbBuckets[bucket];
+            tlbBuckets[bucket] = number;
+            return;
+        }
+
+        int i = tlbBuckets[bucket];
+        while (tlbChain[i] >= 0 && tlbChain[i] < number)
+            i = tlbChain[i];
+
+        tlbChain[number] = tlbChain[i];
+        tlbChain[i] = number;
     }
 
     /**
@@ -292,6 +507,24 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
         throws MipsException {
+        return translate(vaddr, size, writing, dataTLB);
+    }
+
+    /**
+     * Translate the address of an instruction to be fetched. Same as
+     * <tt>translate(vaddr, 4, false)</tt>, but remembers the translation
+     * separately from the translations used for loads and stores.
+     *
+     * @param vaddr the virtual address of the instruction.
+     * @return the physical address.
+     * @throws MipsException if a translation error occurred.
+     */
+    private int translateFetch(int vaddr) throws MipsException {
+        return translate(vaddr, 4, false, fetchTLB);
+    }
+
+    private int translate(int vaddr, int size, boolean writing,
+                          MicroTLB micro) throws MipsException {
         if (Lib.test(dbgProcessor))
             System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
                 + (writing ? ", write" : ", read..."));
@@ -308,8 +541,13 @@ public final class Processor {
 
         TranslationEntry entry = null;
 
+        // reuse the last translation if no kernel code ran since
+        if (micro.vpn == vpn && micro.epoch == kernelEpoch &&
+            micro.entry != null) {
+            entry = micro.entry;
+        }
         // if not using a TLB, then the vpn is an index into the table
-        if (!usingTLB) {
+        else if (!usingTLB) {
             if (translations == null || vpn >= translations.length ||
                 translations[vpn] == null ||
                 !translations[vpn].valid) {
@@ -319,11 +557,13 @@ public final class Processor {
             }
 
             entry = translations[vpn];
+            micro.fill(vpn, entry, kernelEpoch);
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look up the valid TLB entries hashed to this vpn
         else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
+            int bucket = vpn & (tlbBuckets.length - 1);
+            for (int i = tlbBuckets[bucket]; i >= 0; i = tlbChain[i]) {
+                if (translations[i].vpn == vpn) {
                     entry = translations[i];
                     break;
                 }
@@ -333,6 +573,8 @@ public final class Processor {
                 Lib.debug(dbgProcessor, "\t\tTLB miss");
                 throw new MipsException(exceptionTLBMiss, vaddr);
             }
+
+            micro.fill(vpn, entry, kernelEpoch);
         }
 
         // check if trying to write a read-only page
@@ -404,8 +646,124 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-            value);
+        int paddr = translate(vaddr, size, true);
+        Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+        invalidateDecoded(paddr);
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i> stored
+     * at physical address <i>paddr</i>, decoding it and caching the result
+     * if necessary. Each cache entry remembers the word it was decoded from,
+     * so a kernel that modifies memory directly through <tt>getMemory()</tt>
+     * can never cause a stale instruction to be executed.
+     *
+     * @param paddr the physical address the instruction was fetched from.
+     * @param value the instruction word found at <i>paddr</i>.
+     * @return the decoded instruction.
+     */
+    private Decoded decodeAt(int paddr, int value) {
+        Decoded[] page = decodeCache[paddr / pageSize];
+        if (page == null)
+            page = decodeCache[paddr / pageSize] = new Decoded[pageSize / 4];
+
+        int index = (paddr % pageSize) / 4;
+        Decoded decoded = page[index];
+        if (decoded == null || decoded.value != value)
+            decoded = page[index] = new Decoded(value);
+
+        return decoded;
+    }
+
+    /**
+     * Discard the predecoded instruction, if any, covering the specified
+     * physical address. Called whenever user code stores to memory.
+     *
+     * @param paddr the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+        Decoded[] page = decodeCache[paddr / pageSize];
+        if (page != null)
+            page[(paddr % pageSize) / 4] = null;
+
+        invalidateBlocks(paddr / pageSize);
+    }
+
+    /**
+     * Return the translated block starting at physical address <i>paddr</i>,
+     * translating it if necessary. Blocks that survived a trip through the
+     * kernel are checked against memory before they are reused, since the
+     * kernel may have written the page directly.
+     *
+     * @param paddr the physical address of the first instruction.
+     * @return the translated block.
+     */
+    private Block blockAt(int paddr) {
+        Block[] page = blockCache[paddr / pageSize];
+        if (page == null)
+            page = blockCache[paddr / pageSize] = new Block[pageSize / 4];
+
+        int index = (paddr % pageSize) / 4;
+        Block block = page[index];
+        if (block == null ||
+            (block.epoch != kernelEpoch && !block.matchesMemory()))
+            block = page[index] = new Block(paddr);
+
+        block.epoch = kernelEpoch;
+        return block;
+    }
+
+    /**
+     * Compile the specified block to JVM bytecode.
+     *
+     * @param block the block to compile.
+     * @return the compiled block, or <tt>null</tt> if it could not be
+     * compiled.
+     */
+    private CompiledBlock compile(Block block) {
+        Decoded[] code = new Decoded[block.ops.length];
+        for (int i = 0; i < code.length; i++)
+            code[i] = block.ops[i].decoded;
+
+        CompiledBlock compiled = compiler.compile(code);
+        if (compiled != null) {
+            compiled.processor = this;
+            compiled.block = block;
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Discard all translated blocks in the specified physical page.
+     *
+     * @param ppn the physical page number.
+     */
+    private void invalidateBlocks(int ppn) {
+        Block[] page = blockCache[ppn];
+        if (page == null)
+            return;
+
+        for (int i = 0; i < page.length; i++) {
+            if (page[i] != null)
+                page[i].valid = false;
+        }
+
+        blockCache[ppn] = null;
+    }
+
+    /**
+     * Discard all predecoded instructions in the specified physical page.
+     * Called when a new page is loaded into physical memory.
+     *
+     * @param ppn the physical page number.
+     */
+    void invalidatePage(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+        decodeCache[ppn] = null;
+        invalidateBlocks(ppn);
     }
 
     /**
@@ -606,6 +964,18 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * The first valid TLB entry whose vpn hashes to each bucket, or -1.
+     */
+    private int[] tlbBuckets;
+    /**
+     * The next valid TLB entry in the same bucket as each TLB entry, or -1.
+     */
+    private int[] tlbChain;
+    /**
+     * The last translations used for instruction fetch and for data.
+     */
+    private MicroTLB fetchTLB = new MicroTLB(), dataTLB = new MicroTLB();
 
     /**
      * Size of a page, in bytes.
@@ -623,6 +993,61 @@ public final class Processor {
      * Main memory for user programs.
      */
     private byte[] mainMemory;
+    /**
+     * Predecoded instructions, indexed by physical page and then by word
+     * within the page. Pages are allocated the first time an instruction is
+     * fetched from them.
+     */
+    private Decoded[][] decodeCache;
+
+    /**
+     * Translated basic blocks, indexed like <tt>decodeCache</tt> by the
+     * physical address of their first instruction.
+     */
+    private Block[][] blockCache;
+    /**
+     * Incremented every time kernel code gets a chance to run (an exception
+     * handler or an interrupt handler), so that blocks know when to check
+     * themselves against memory.
+     */
+    private int kernelEpoch = 0;
+    /**
+     * Set whenever an interrupt handler is about to run.
+     */
+    private boolean pipeFlushed = false;
+
+    /**
+     * <tt>true</tt> if the clock may be advanced in batches.
+     */
+    private boolean batchTicks = false;
+    /**
+     * The number of further user instructions whose ticks can be counted
+     * without checking for interrupts.
+     */
+    private long tickBudget = 0;
+    /**
+     * The number of user instructions whose ticks have been counted but not
+     * yet added to the simulated clock.
+     */
+    private long deferredTicks = 0;
+
+    /**
+     * How instructions are executed; one of the <tt>mode<i>*</i></tt>
+     * constants.
+     */
+    private int executionMode;
+    private static final int modeInterpreter = 0;
+    private static final int modeThreaded = 1;
+    private static final int modeJIT = 2;
+
+    /**
+     * Compiles hot blocks in <tt>jit</tt> mode, or <tt>null</tt>.
+     */
+    private BlockCompiler compiler = null;
+    /**
+     * The number of times a block is entered before it is compiled.
+     */
+    private int jitThreshold;
 
     /**
      * The kernel exception handler, called on every user exception.
@@ -633,9 +1058,32 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /**
+     * Remembers the last successful translation of one kind of access. The
+     * kernel can only change a page table or the TLB while kernel code runs,
+     * so a translation is reused only until the next exception or interrupt.
+     */
+    private static class MicroTLB {
+        void fill(int vpn, TranslationEntry entry, int epoch) {
+            this.vpn = vpn;
+            this.entry = entry;
+            this.epoch = epoch;
+        }
+
+        void flush() {
+            entry = null;
+        }
+
+        int vpn, epoch;
+        TranslationEntry entry = null;
+    }
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
         public void flushPipe() {
             finishLoad();
+
+            pipeFlushed = true;
+            kernelEpoch++;
         }
     }
 
@@ -654,6 +1102,10 @@ public final class Processor {
         }
 
         public void handle() {
+            // the kernel must see the current time
+            flushTicks();
+            tickBudget = 0;
+
             writeRegister(regCause, cause);
 
             if (hasBadVAddr)
@@ -664,6 +1116,8 @@ public final class Processor {
 
             finishLoad();
 
+            kernelEpoch++;
+
             Lib.assertTrue(exceptionHandler != null);
 
             // autograder might not want kernel to know about this exception
@@ -686,6 +1140,19 @@ public final class Processor {
             writeBack();
         }
 
+        /**
+         * Run the instruction word <i>value</i>, already fetched from
+         * physical address <i>paddr</i>.
+         */
+        public void run(int paddr, int value) throws MipsException {
+            this.paddr = paddr;
+            this.value = value;
+
+            decode();
+            execute();
+            writeBack();
+        }
+
         private boolean test(int flag) {
             return Lib.test(flag, flags);
         }
@@ -696,78 +1163,54 @@ public final class Processor {
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                     + "\t");
 
-            value = readMem(registers[regPC], 4);
+            if (Lib.test(dbgProcessor))
+                System.out.println("\treadMem vaddr=0x" +
+                    Lib.toHexString(registers[regPC]) + ", size=4");
+
+            paddr = translateFetch(registers[regPC]);
+            value = Lib.bytesToInt(mainMemory, paddr);
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" +
+                    Lib.toHexString(value, 8));
         }
 
         private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+            Decoded decoded = decodeAt(paddr, value);
 
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
+            op = decoded.op;
+            rs = decoded.rs;
+            rt = decoded.rt;
+            rd = decoded.rd;
+            sh = decoded.sh;
+            func = decoded.func;
+            target = decoded.target;
+            imm = decoded.imm;
 
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+            operation = decoded.operation;
+            name = decoded.name;
+            format = decoded.format;
+            flags = decoded.flags;
+
+            size = decoded.size;
+            dstReg = decoded.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + decoded.branchOffset;
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -1120,7 +1563,7 @@ public final class Processor {
         }
 
         // state used to execute a single instruction
-        int value, op, rs, rt, rd, sh, func, target, imm;
+        int value, paddr, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
 
@@ -1131,7 +1574,542 @@ public final class Processor {
         boolean branch;
     }
 
-    private static class Mips {
+    /**
+     * A straight-line run of instructions within one physical page,
+     * translated into operations that can run back to back without being
+     * fetched or decoded again. A block ends after the delay slot of its
+     * first branch or jump, at any instruction that always traps, or at the
+     * end of the page. Whether execution actually continues sequentially is
+     * decided at run time by <tt>runBlocks()</tt>.
+     */
+    private class Block {
+        Block(int paddr) {
+            int end = (paddr / pageSize + 1) * pageSize;
+            int length = 0;
+            boolean delaySlot = false;
+
+            for (int p = paddr; p < end; p += 4) {
+                Decoded decoded = decodeAt(p, Lib.bytesToInt(mainMemory, p));
+                length++;
+
+                if (delaySlot)
+                    break;
+
+                int operation = decoded.operation;
+                if (operation == Mips.SYSCALL || operation == Mips.INVALID ||
+                    operation == Mips.UNIMPL)
+                    break;
+
+                delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+            }
+
+            words = new int[length];
+            ops = new Op[length];
+            this.paddr = paddr;
+
+            for (int i = 0; i < length; i++) {
+                words[i] = Lib.bytesToInt(mainMemory, paddr + i * 4);
+                ops[i] = newOp(paddr + i * 4, decodeAt(paddr + i * 4, words[i]));
+            }
+        }
+
+        /**
+         * Test whether memory still holds the words this block was
+         * translated from.
+         */
+        boolean matchesMemory() {
+            for (int i = 0; i < words.length; i++) {
+                if (Lib.bytesToInt(mainMemory, paddr + i * 4) != words[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        final int paddr;
+        final int[] words;
+        final Op[] ops;
+        int epoch;
+        boolean valid = true;
+
+        /**
+         * The number of times this block has been entered, counted only in
+         * <tt>jit</tt> mode until the block is compiled.
+         */
+        int entries = 0;
+        CompiledBlock compiled = null;
+    }
+
+    /**
+     * The superclass of the classes generated by <tt>BlockCompiler</tt>.
+     * Generated code reaches the rest of the processor only through the
+     * methods of this class, each of which has exactly the effect of the
+     * corresponding step of <tt>Instruction.run()</tt>.
+     */
+    abstract static class CompiledBlock {
+        /**
+         * Run the block starting with its first instruction, and return as
+         * soon as <tt>runBlocks()</tt> would leave it.
+         *
+         * @param registers the processor's registers.
+         * @param vaddr     the virtual address of the first instruction.
+         */
+        abstract void run(int[] registers, int vaddr) throws MipsException;
+
+        final void finishLoad() {
+            processor.finishLoad();
+        }
+
+        final void delayedLoad(int target, int value) {
+            processor.delayedLoad(target, value, 0xFFFFFFFF);
+        }
+
+        final int readMem(int vaddr, int size) throws MipsException {
+            return Lib.bytesToInt(processor.mainMemory,
+                processor.translate(vaddr, size, false), size);
+        }
+
+        final void writeMem(int vaddr, int size, int value)
+            throws MipsException {
+            int paddr = processor.translate(vaddr, size, true);
+            Lib.bytesFromInt(processor.mainMemory, paddr, size, value);
+
+            processor.invalidateDecoded(paddr);
+        }
+
+        final int add(int src1, int src2) throws MipsException {
+            long dst = (long) src1 + src2;
+            if (dst != (int) dst)
+                throw processor.new MipsException(exceptionOverflow);
+            return (int) dst;
+        }
+
+        final int sub(int src1, int src2) throws MipsException {
+            long dst = (long) src1 - src2;
+            if (dst != (int) dst)
+                throw processor.new MipsException(exceptionOverflow);
+            return (int) dst;
+        }
+
+        final int slt(int src1, int src2) {
+            return (src1 < src2) ? 1 : 0;
+        }
+
+        final int sltu(int src1, int src2) {
+            return ((src1 ^ 0x80000000) < (src2 ^ 0x80000000)) ? 1 : 0;
+        }
+
+        final void interpret(int index) throws MipsException {
+            block.ops[index].run();
+        }
+
+        /**
+         * Count the ticks of the instructions run before leaving the block.
+         * The block is only entered when no interrupt can become due before
+         * it ends, so this has the effect of calling <tt>tick()</tt> once
+         * per instruction.
+         *
+         * @param n the number of instructions that completed.
+         */
+        final void ticks(int n) {
+            processor.tickBudget -= n;
+            processor.deferredTicks += n;
+        }
+
+        /**
+         * Test whether the block is still the code in memory.
+         *
+         * @return <tt>true</tt> if execution may stay in the block.
+         */
+        final boolean valid() {
+            return !processor.pipeFlushed && block.valid;
+        }
+
+        /**
+         * Test whether execution still follows the block.
+         *
+         * @param registers the processor's registers.
+         * @param nextPC    the address of the next instruction in the block.
+         * @return <tt>true</tt> if execution should stay in the block.
+         */
+        final boolean follows(int[] registers, int nextPC) {
+            return valid() && registers[regPC] == nextPC;
+        }
+
+        Processor processor;
+        Block block;
+    }
+
+    /**
+     * Choose the operation that runs the specified instruction.
+     */
+    private Op newOp(int paddr, Decoded decoded) {
+        switch (decoded.operation) {
+            case Mips.ADD:
+            case Mips.SUB:
+            case Mips.MULT:
+            case Mips.DIV:
+            case Mips.SLL:
+            case Mips.SRA:
+            case Mips.SRL:
+            case Mips.SLT:
+            case Mips.AND:
+            case Mips.OR:
+            case Mips.NOR:
+            case Mips.XOR:
+            case Mips.LUI:
+            case Mips.MFLO:
+            case Mips.MFHI:
+            case Mips.MTLO:
+            case Mips.MTHI:
+                return new AluOp(decoded);
+
+            case Mips.LOAD:
+                return new LoadOp(decoded);
+
+            case Mips.STORE:
+                return new StoreOp(decoded);
+
+            case Mips.BEQ:
+            case Mips.BNE:
+            case Mips.BLEZ:
+            case Mips.BGTZ:
+            case Mips.BLTZ:
+            case Mips.BGEZ:
+            case Mips.JUMP:
+                return new BranchOp(decoded);
+
+            default:
+                return new InterpretedOp(paddr, decoded);
+        }
+    }
+
+    /**
+     * One translated instruction. Running an operation has exactly the same
+     * effect on the processor as <tt>Instruction.run()</tt> would have on the
+     * same instruction, including the order in which a pending delayed load
+     * is completed and exceptions are thrown.
+     */
+    private abstract class Op {
+        Op(Decoded decoded) {
+            this.decoded = decoded;
+
+            rs = decoded.rs;
+            rt = decoded.rt;
+            imm = decoded.imm;
+            dstReg = decoded.dstReg;
+            unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+        }
+
+        abstract void run() throws MipsException;
+
+        final Decoded decoded;
+        final int rs, rt, imm, dstReg;
+        final boolean unsigned;
+    }
+
+    /**
+     * Arithmetic, logic, shift, and hi/lo register instructions.
+     */
+    private class AluOp extends Op {
+        AluOp(Decoded decoded) {
+            super(decoded);
+
+            operation = decoded.operation;
+            sh = decoded.sh;
+            src1Sh = Lib.test(Mips.SRC1SH, decoded.flags);
+            src2Imm = Lib.test(Mips.SRC2IMM, decoded.flags);
+            overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+            writesDst = Lib.test(Mips.DST, decoded.flags) && dstReg != 0;
+        }
+
+        void run() throws MipsException {
+            long src1 = src1Sh ? sh : registers[rs];
+            long src2 = src2Imm ? imm : registers[rt];
+            long dst = 0;
+
+            if (unsigned) {
+                src1 &= 0xFFFFFFFFL;
+                src2 &= 0xFFFFFFFFL;
+            }
+
+            switch (operation) {
+                case Mips.ADD:
+                    dst = src1 + src2;
+                    break;
+                case Mips.SUB:
+                    dst = src1 - src2;
+                    break;
+                case Mips.MULT:
+                    dst = src1 * src2;
+                    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+                    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+                    break;
+                case Mips.DIV:
+                    try {
+                        registers[regLo] = (int) (src1 / src2);
+                        registers[regHi] = (int) (src1 % src2);
+                        if (registers[regLo] * src2 + registers[regHi] != src1)
+                            throw new ArithmeticException();
+                    } catch (ArithmeticException e) {
+                        throw new MipsException(exceptionOverflow);
+                    }
+                    break;
+                case Mips.SLL:
+                    dst = src2 << (src1 & 0x1F);
+                    break;
+                case Mips.SRA:
+                    dst = src2 >> (src1 & 0x1F);
+                    break;
+                case Mips.SRL:
+                    dst = src2 >>> (src1 & 0x1F);
+                    break;
+                case Mips.SLT:
+                    dst = (src1 < src2) ? 1 : 0;
+                    break;
+                case Mips.AND:
+                    dst = src1 & src2;
+                    break;
+                case Mips.OR:
+                    dst = src1 | src2;
+                    break;
+                case Mips.NOR:
+                    dst = ~(src1 | src2);
+                    break;
+                case Mips.XOR:
+                    dst = src1 ^ src2;
+                    break;
+                case Mips.LUI:
+                    dst = imm << 16;
+                    break;
+                case Mips.MFLO:
+                    dst = registers[regLo];
+                    break;
+                case Mips.MFHI:
+                    dst = registers[regHi];
+                    break;
+                case Mips.MTLO:
+                    registers[regLo] = (int) src1;
+                    break;
+                case Mips.MTHI:
+                    registers[regHi] = (int) src1;
+                    break;
+            }
+
+            if (overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+                throw new MipsException(exceptionOverflow);
+
+            finishLoad();
+
+            if (writesDst)
+                registers[dstReg] = (int) dst;
+
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        final int operation, sh;
+        final boolean src1Sh, src2Imm, overflow, writesDst;
+    }
+
+    /**
+     * Sign- or zero-extending loads of a byte, halfword, or word.
+     */
+    private class LoadOp extends Op {
+        LoadOp(Decoded decoded) {
+            super(decoded);
+
+            size = decoded.size;
+        }
+
+        void run() throws MipsException {
+            int value = readMem(registers[rs] + imm, size);
+
+            if (!unsigned)
+                value = Lib.extend(value, 0, size * 8);
+
+            delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        final int size;
+    }
+
+    /**
+     * Stores of a byte, halfword, or word.
+     */
+    private class StoreOp extends Op {
+        StoreOp(Decoded decoded) {
+            super(decoded);
+
+            size = decoded.size;
+        }
+
+        void run() throws MipsException {
+            writeMem(registers[rs] + imm, size, registers[rt]);
+
+            finishLoad();
+
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        final int size;
+    }
+
+    /**
+     * Conditional branches and jumps, with or without a link.
+     */
+    private class BranchOp extends Op {
+        BranchOp(Decoded decoded) {
+            super(decoded);
+
+            operation = decoded.operation;
+            format = decoded.format;
+            target = decoded.target << 2;
+            branchOffset = decoded.branchOffset;
+            link = Lib.test(Mips.LINK, decoded.flags) && dstReg != 0;
+        }
+
+        void run() {
+            long src1 = registers[rs];
+            long src2 = registers[rt];
+            int nextPC = registers[regNextPC] + 4;
+            int jtarget;
+
+            if (format == Mips.RFMT)
+                jtarget = registers[rs];
+            else if (format == Mips.IFMT)
+                jtarget = registers[regNextPC] + branchOffset;
+            else
+                jtarget = (registers[regNextPC] & 0xF0000000) | target;
+
+            boolean branch;
+            switch (operation) {
+                case Mips.BEQ:
+                    branch = (src1 == src2);
+                    break;
+                case Mips.BNE:
+                    branch = (src1 != src2);
+                    break;
+                case Mips.BGEZ:
+                    branch = (src1 >= 0);
+                    break;
+                case Mips.BGTZ:
+                    branch = (src1 > 0);
+                    break;
+                case Mips.BLEZ:
+                    branch = (src1 <= 0);
+                    break;
+                case Mips.BLTZ:
+                    branch = (src1 < 0);
+                    break;
+                default:
+                    branch = true;
+                    break;
+            }
+
+            finishLoad();
+
+            if (link)
+                registers[dstReg] = nextPC;
+
+            advancePC(branch ? jtarget : nextPC);
+        }
+
+        final int operation, format, target, branchOffset;
+        final boolean link;
+    }
+
+    /**
+     * Any other instruction, run through the interpreter.
+     */
+    private class InterpretedOp extends Op {
+        InterpretedOp(int paddr, Decoded decoded) {
+            super(decoded);
+
+            this.paddr = paddr;
+        }
+
+        void run() throws MipsException {
+            inst.run(paddr, decoded.value);
+        }
+
+        final int paddr;
+        final Instruction inst = new Instruction();
+    }
+
+    /**
+     * An instruction word together with every field <tt>decode()</tt> can
+     * derive from the word alone. Only the register-dependent operands have
+     * to be computed each time a cached instruction is executed.
+     */
+    static class Decoded {
+        Decoded(int value) {
+            this.value = value;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
+
+            Mips info;
+            switch (op) {
+                case 0:
+                    info = Mips.specialtable[func];
+                    break;
+                case 1:
+                    info = Mips.regimmtable[rt];
+                    break;
+                default:
+                    info = Mips.optable[op];
+                    break;
+            }
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // branch offsets use the sign-extended immediate
+            int signedImm = Lib.extend(value, 0, 16);
+            branchOffset = signedImm << 2;
+
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm = signedImm & 0xFFFF;
+            else
+                imm = signedImm;
+        }
+
+        final int value, op, rs, rt, rd, sh, func, target, imm;
+        final int operation, format, flags;
+        final String name;
+        final int size, dstReg, branchOffset;
+    }
+
+    static class Mips {
         Mips() {
         }
 
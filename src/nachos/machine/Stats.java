@@ -29,6 +29,56 @@ public final class Stats {
             + ", TLB misses " + numTLBMisses);
         System.out.println("Network I/O: received " + numPacketsReceived
             + ", sent " + numPacketsSent);
+
+        if (schedulerLevelTicks != null) {
+            System.out.println("Scheduler levels: ticks "
+                + join(schedulerLevelTicks)
+                + ", choices " + join(schedulerLevelChoices));
+            System.out.println("Scheduler levels: peak waiting "
+                + join(schedulerLevelPeakWaiting)
+                + ", mean waiting " + meanWaiting());
+        }
+        if (realTimeJobs > 0) {
+            System.out.println("Real-time: jobs " + realTimeJobs
+                + ", deadline misses " + deadlineMisses
+                + ", budget overruns " + budgetOverruns
+                + ", slack avg " + totalSlack / realTimeJobs
+                + ", min " + minSlack);
+        }
+    }
+
+    private static String join(long[] values) {
+        StringBuffer buffer = new StringBuffer();
+
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                buffer.append('/');
+            buffer.append(values[i]);
+        }
+
+        return buffer.toString();
+    }
+
+    /**
+     * Return the average number of threads that have been waiting at each
+     * level, to two decimal places.
+     */
+    private String meanWaiting() {
+        StringBuffer buffer = new StringBuffer();
+
+        for (int i = 0; i < schedulerLevelWaiting.length; i++) {
+            if (i > 0)
+                buffer.append('/');
+
+            long waitingTicks = schedulerLevelWaitingTicks[i]
+                + schedulerLevelWaiting[i] * totalTicks;
+            long hundredths = (totalTicks == 0) ? 0
+                : (100 * waitingTicks + totalTicks / 2) / totalTicks;
+            buffer.append(hundredths / 100).append('.');
+            buffer.append(hundredths / 10 % 10).append(hundredths % 10);
+        }
+
+        return buffer.toString();
     }
 
     /**
@@ -78,6 +128,59 @@ public final class Stats {
      */
     public int numPacketsReceived = 0;
 
+    /**
+     * For a multilevel scheduler, the amount of time threads have run at each
+     * level, highest level first, or <tt>null</tt> if the scheduler does not
+     * have levels.
+     */
+    public long[] schedulerLevelTicks = null;
+    /**
+     * For a multilevel scheduler, the number of times a thread has been
+     * chosen from each level.
+     */
+    public long[] schedulerLevelChoices = null;
+    /**
+     * For a multilevel scheduler, the number of threads now waiting on
+     * queues at each level.
+     */
+    public long[] schedulerLevelWaiting = null;
+    /**
+     * For a multilevel scheduler, the most threads that have been waiting at
+     * each level at once.
+     */
+    public long[] schedulerLevelPeakWaiting = null;
+    /**
+     * For a multilevel scheduler, the time threads have spent waiting at each
+     * level, less the number of threads now waiting there times
+     * <tt>totalTicks</tt>. Each time a thread starts waiting at a level, the
+     * current time is subtracted, and each time one stops waiting it is
+     * added back, so the count need not be brought up to date when the
+     * statistics are printed.
+     */
+    public long[] schedulerLevelWaitingTicks = null;
+
+    /**
+     * The total number of periods completed by real-time threads.
+     */
+    public long realTimeJobs = 0;
+    /**
+     * The total number of periods that real-time threads completed after
+     * their deadlines.
+     */
+    public long deadlineMisses = 0;
+    /**
+     * The total number of periods in which a real-time thread used up its
+     * budget.
+     */
+    public long budgetOverruns = 0;
+    /**
+     * The sum and the minimum of the time left until the deadline when a
+     * real-time thread completed a period. Slack is negative for a missed
+     * deadline.
+     */
+    public long totalSlack = 0;
+    public long minSlack = Long.MAX_VALUE;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
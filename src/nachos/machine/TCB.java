@@ -6,6 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,11 +19,27 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The JVM threads of destroyed TCBs are not thrown away. Up to
+ * <tt>TCB.threadPoolSize</tt> of them wait in a pool, and new TCBs run on
+ * them instead of on newly created threads.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set and the JVM supports them, each TCB
+ * after the first runs on a virtual thread instead, and TCBs hand control to
+ * each other with <tt>LockSupport.park()</tt>/<tt>unpark()</tt>. This raises
+ * the limit on the number of TCBs to <tt>maxVirtualThreads</tt>.
+ *
+ * <p>
+ * If <tt>TCB.spinCount</tt> is positive, a TCB waiting for its turn first
+ * polls its <tt>running</tt> flag that many times before it parks, which
+ * avoids a trip through the OS scheduler when the next switch comes quickly.
+ *
+ * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
  */
@@ -40,6 +61,46 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
         TCB.privilege = privilege;
         privilege.tcb = new TCBPrivilege();
+
+        if (Config.getBoolean("TCB.virtualThreads", false)) {
+            virtualThreadFactory = getVirtualThreadFactory();
+            if (virtualThreadFactory == null)
+                System.out.print(" (no virtual threads)");
+        }
+
+        threadPoolSize = Config.getInteger("TCB.threadPoolSize", 32);
+        Lib.assertTrue(threadPoolSize >= 0);
+
+        spinCount = Config.getInteger("TCB.spinCount", 0);
+        Lib.assertTrue(spinCount >= 0);
+
+        parking = (virtualThreadFactory != null || spinCount > 0);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>, which is not
+     * available on every JVM Nachos runs on.
+     *
+     * @return a handle that creates an unstarted virtual thread for a
+     * <tt>Runnable</tt>, or <tt>null</tt> if virtual threads are not
+     * supported.
+     */
+    private static MethodHandle getVirtualThreadFactory() {
+        try {
+            Class<?> builderClass =
+                Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+            Object builder =
+                lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(builderClass)).invoke();
+
+            return lookup.findVirtual(builderClass, "unstarted",
+                MethodType.methodType(Thread.class, Runnable.class))
+                .bindTo(builder);
+        } catch (Throwable e) {
+            return null;
+        }
     }
 
     /**
@@ -66,7 +127,8 @@ public final class TCB {
         /* Make sure there aren't too many running TCBs already. This
          * limitation exists in an effort to prevent wild thread usage.
          */
-        Lib.assertTrue(runningThreads.size() < maxThreads);
+        Lib.assertTrue(runningThreads.size() <
+            (virtualThreadFactory != null ? maxVirtualThreads : maxThreads));
 
         isFirstTCB = (currentTCB == null);
 
@@ -86,30 +148,37 @@ public final class TCB {
         this.target = target;
 
         if (!isFirstTCB) {
-            /* If this is not the first TCB, we have to make a new Java thread
-             * to run it. Creating Java threads is a privileged operation.
+            /* If this is not the first TCB, we need a Java thread to run it.
+             * We take one left over from a destroyed TCB if there is one.
+             * Otherwise we make a new Java thread. Creating Java threads is a
+             * privileged operation.
              */
-            tcbTarget = new Runnable() {
-                public void run() {
-                    threadroot();
-                }
-            };
+            Carrier carrier = takeIdleCarrier();
+            boolean newCarrier = (carrier == null);
+
+            if (newCarrier) {
+                carrier = (Carrier) privilege.doPrivileged(
+                    new PrivilegedAction<Object>() {
+                        public Object run() {
+                            return new Carrier();
+                        }
+                    });
+            }
 
-            privilege.doPrivileged(new Runnable() {
-                public void run() {
-                    javaThread = new Thread(tcbTarget);
-                }
-            });
+            javaThread = carrier.thread;
 
-            /* The Java thread hasn't yet started, but we need to get it
-             * blocking in yield(). We do this by temporarily turning off the
-             * current TCB, starting the new Java thread, and waiting for it
-             * to wake us up from threadroot(). Once the new TCB wakes us up,
-             * it's safe to context switch to the new TCB.
+            /* The Java thread isn't running this TCB yet, but we need to get
+             * it blocking in yield(). We do this by temporarily turning off
+             * the current TCB, handing this TCB to the Java thread, and
+             * waiting for it to wake us up from threadroot(). Once the new
+             * TCB wakes us up, it's safe to context switch to the new TCB.
              */
             currentTCB.running = false;
 
-            this.javaThread.start();
+            carrier.assign(this);
+            if (newCarrier)
+                this.javaThread.start();
+
             currentTCB.waitForInterrupt();
         } else {
             /* This is the first TCB, so we don't need to make a new Java
@@ -122,6 +191,53 @@ public final class TCB {
         }
     }
 
+    private static Thread newThread(Runnable target) {
+        if (virtualThreadFactory == null)
+            return new Thread(target);
+
+        try {
+            return (Thread) virtualThreadFactory.invoke(target);
+        } catch (Throwable e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Remove a Java thread from the pool of threads left over from destroyed
+     * TCBs.
+     *
+     * @return an idle carrier, or <tt>null</tt> if the pool is empty.
+     */
+    private static Carrier takeIdleCarrier() {
+        synchronized (idleCarriers) {
+            if (idleCarriers.isEmpty())
+                return null;
+
+            return idleCarriers.remove(idleCarriers.size() - 1);
+        }
+    }
+
+    /**
+     * Put a Java thread whose TCB has been destroyed into the pool, unless the
+     * pool is full. Virtual threads are cheap to create, so they are never
+     * pooled.
+     *
+     * @param carrier the carrier to reuse.
+     * @return <tt>true</tt> if the carrier was added to the pool.
+     */
+    private static boolean returnIdleCarrier(Carrier carrier) {
+        if (virtualThreadFactory != null)
+            return false;
+
+        synchronized (idleCarriers) {
+            if (idleCarriers.size() >= threadPoolSize)
+                return false;
+
+            idleCarriers.add(carrier);
+            return true;
+        }
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -210,6 +326,10 @@ public final class TCB {
             Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Run this TCB on the current Java thread. Returns once the TCB has been
+     * destroyed, so that the Java thread can be reused for another TCB.
+     */
     private void threadroot() {
         // this should be running the current thread
         Lib.assertTrue(javaThread == Thread.currentThread());
@@ -287,11 +407,22 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-        while (!running) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
+    private void waitForInterrupt() {
+        for (int i = 0; i < spinCount && !running; i++)
+            Thread.onSpinWait();
+
+        if (parking) {
+            while (!running)
+                LockSupport.park(this);
+            return;
+        }
+
+        synchronized (this) {
+            while (!running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
             }
         }
     }
@@ -302,9 +433,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-        running = true;
-        notify();
+    private void interrupt() {
+        if (parking) {
+            running = true;
+            LockSupport.unpark(javaThread);
+            return;
+        }
+
+        synchronized (this) {
+            running = true;
+            notify();
+        }
     }
 
     private void associateThread(KThread thread) {
@@ -334,6 +473,12 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's when TCBs run on
+     * virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -366,6 +511,32 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * Creates the Java thread for each new TCB if TCBs run on virtual
+     * threads, or <tt>null</tt> to use platform threads.
+     */
+    private static MethodHandle virtualThreadFactory = null;
+    /**
+     * The number of times a waiting TCB polls its <tt>running</tt> flag before
+     * blocking.
+     */
+    private static int spinCount = 0;
+    /**
+     * The maximum number of Java threads kept in <tt>idleCarriers</tt>.
+     */
+    private static int threadPoolSize = 0;
+    /**
+     * Java threads whose TCBs have been destroyed, waiting to run new TCBs.
+     * Unlike the rest of the TCB state, this is touched by a carrier after
+     * it has handed control to another TCB, so access is synchronized.
+     */
+    private static ArrayList<Carrier> idleCarriers = new ArrayList<Carrier>();
+    /**
+     * <tt>true</tt> if waiting TCBs block with <tt>LockSupport.park()</tt>
+     * rather than on their monitor.
+     */
+    private static boolean parking = false;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -390,7 +561,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -402,7 +573,46 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * A Java thread that runs TCBs one after another. Between TCBs it waits
+     * in <tt>idleCarriers</tt> for <tt>start()</tt> to hand it the next one.
+     * Note that the TCB that destroyed the previous one is already running
+     * while the carrier returns itself to the pool.
+     */
+    private static class Carrier implements Runnable {
+        Carrier() {
+            thread = newThread(this);
+        }
+
+        public void run() {
+            do {
+                nextTCB().threadroot();
+            } while (returnIdleCarrier(this));
+        }
+
+        synchronized void assign(TCB tcb) {
+            Lib.assertTrue(next == null);
+            next = tcb;
+            notify();
+        }
+
+        private synchronized TCB nextTCB() {
+            while (next == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+
+            TCB tcb = next;
+            next = null;
+            return tcb;
+        }
+
+        final Thread thread;
+        private TCB next = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
         public void associateThread(KThread thread) {
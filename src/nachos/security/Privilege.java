@@ -167,6 +167,25 @@ public abstract class Privilege {
          *                     MIPS user code.
          */
         public void tick(boolean inKernelMode);
+
+        /**
+         * Return the number of ticks until the next pending interrupt is
+         * due. Until then, time can be advanced in batches with
+         * <tt>tickUser()</tt>.
+         *
+         * @return the number of ticks until the next pending interrupt, or
+         * <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+         */
+        public long ticksUntilNextInterrupt();
+
+        /**
+         * Advance the simulated time by the specified number of user
+         * instructions at once. Same as calling <tt>tick(false)</tt>
+         * <i>count</i> times, which must not make any interrupt due.
+         *
+         * @param count the number of user instructions executed.
+         */
+        public void tickUser(long count);
     }
 
     /**
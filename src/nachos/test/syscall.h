@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallWait		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +110,21 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Suspend execution of the current process until any of its child processes
+ * has exited. If children have already exited by the time of the call,
+ * returns immediately with the child that exited first. The child is
+ * disowned, as by join(), so its process ID cannot be joined or waited for
+ * again.
+ *
+ * status points to an integer where the exit status of the child process will
+ * be stored, as for join().
+ *
+ * Returns the process ID of the child, or -1 if the current process has no
+ * child processes.
+ */
+int wait(int *status);
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -2,11 +2,20 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hierarchical timing wheel. Level <i>l</i> has
+ * 64 slots, each covering 64<sup><i>l</i></sup> ticks, and a timeout is put in
+ * the lowest level whose range still covers its wake time. Each slot is a
+ * doubly linked list, so adding and cancelling a timeout both take constant
+ * time. As time advances, the slot of a higher level that is reached is
+ * emptied into the levels below it, until each timeout ends up in a level 0
+ * slot for its exact wake time. A bitmap of the non-empty slots at each level
+ * lets time jump straight to the next non-empty slot at any level, so a long
+ * stretch with nothing due is crossed in a few steps per level.
  */
 public class Alarm {
     /**
@@ -17,6 +26,8 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+        currentTime = Machine.timer().getTime();
+
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -27,18 +38,22 @@ public class Alarm {
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * thread to yield, forcing a context switch, if there is another thread
+     * ready to run and the current thread has used up its quantum (see
+     * <tt>Scheduler.getQuantum()</tt>). Otherwise the yield could only choose
+     * the current thread again, so it is skipped.
      */
     public void timerInterrupt() {
         boolean inStatus = Machine.interrupt().disable();
-        while (!waitQueue.isEmpty()
-            && waitQueue.peek().wakeTime <= Machine.timer().getTime()) {
-            Lib.debug(dbgAlarm, "Waking up thread " + waitQueue.peek().thread.toString()
-                + " at " + Machine.timer().getTime() + " cycles");
-            waitQueue.poll().thread.ready();
+        advance(Machine.timer().getTime());
+
+        numInterrupts++;
+        if (KThread.threadsReady() && KThread.runTime() >=
+            ThreadedKernel.scheduler.getQuantum(KThread.currentThread())) {
+            numPreemptions++;
+            KThread.yield();
         }
-        KThread.yield();
+
         Machine.interrupt().restore(inStatus);
     }
 
@@ -57,33 +72,385 @@ public class Alarm {
      */
     // Done: Part 1, Task 3
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
+        boolean inStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+        if (thread.sleepTimeout == null)
+            thread.sleepTimeout = new Timeout();
+
+        waitUntil(x, thread.sleepTimeout);
+
+        Machine.interrupt().restore(inStatus);
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks, or until
+     * <i>timeout</i> is cancelled, whichever comes first. The timeout must not
+     * already be pending; it may be reused once this method returns.
+     *
+     * @param x       the minimum number of clock ticks to wait.
+     * @param timeout the handle through which the wait can be cancelled.
+     * @return <tt>true</tt> if the time passed, or <tt>false</tt> if the wait
+     * was cancelled.
+     */
+    public boolean waitUntil(long x, Timeout timeout) {
         long wakeTime = Machine.timer().getTime() + x;
 
         boolean inStatus = Machine.interrupt().disable();
         Lib.debug(dbgAlarm, "At " + (wakeTime - x) + " cycles, sleeping thread "
             + KThread.currentThread().toString() + " until " + wakeTime + " cycles");
-        waitQueue.add(new WaitThread(KThread.currentThread(), wakeTime));
+
+        timeout.thread = KThread.currentThread();
+        timeout.handler = null;
+        add(timeout, wakeTime);
+
         KThread.sleep();
+
+        boolean expired = !timeout.cancelled;
+        timeout.thread = null;
+
         Machine.interrupt().restore(inStatus);
+        return expired;
+    }
+
+    /**
+     * Arrange for <i>handler</i> to be run in the timer interrupt handler, with
+     * interrupts disabled, once at least <i>x</i> ticks have passed. The
+     * handler must not block.
+     *
+     * @param x       the minimum number of clock ticks to wait.
+     * @param handler the callback to run.
+     * @return a handle through which the callback can be cancelled.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+        Timeout timeout = new Timeout();
+        schedule(x, handler, timeout);
+        return timeout;
+    }
+
+    /**
+     * Like <tt>schedule(x, handler)</tt>, but reuse <i>timeout</i>, which must
+     * not be pending, as the handle.
+     *
+     * @param x       the minimum number of clock ticks to wait.
+     * @param handler the callback to run.
+     * @param timeout the handle to use.
+     */
+    public void schedule(long x, Runnable handler, Timeout timeout) {
+        boolean inStatus = Machine.interrupt().disable();
+
+        timeout.thread = null;
+        timeout.handler = handler;
+        add(timeout, Machine.timer().getTime() + x);
+
+        Machine.interrupt().restore(inStatus);
+    }
+
+    /**
+     * A handle for a pending wake-up or callback, which can be cancelled.
+     * Each handle is pending at most once at a time, but may be reused.
+     */
+    public static class Timeout {
+        /**
+         * Allocate a new timeout handle, which is not yet pending.
+         */
+        public Timeout() {
+        }
+
+        /**
+         * Cancel this timeout. If a thread is sleeping on it, the thread is
+         * woken up immediately and its <tt>waitUntil()</tt> returns
+         * <tt>false</tt>; if it is a callback, the callback is never run.
+         *
+         * @return <tt>true</tt> if this timeout was pending, or <tt>false</tt>
+         * if it had already fired or been cancelled.
+         */
+        public boolean cancel() {
+            boolean inStatus = Machine.interrupt().disable();
+
+            boolean pending = (alarm != null);
+            if (pending) {
+                alarm.remove(this);
+                cancelled = true;
+
+                if (thread != null)
+                    thread.ready();
+            }
+
+            Machine.interrupt().restore(inStatus);
+            return pending;
+        }
+
+        /**
+         * Return whether this timeout is waiting to fire.
+         *
+         * @return <tt>true</tt> if this timeout has neither fired nor been
+         * cancelled.
+         */
+        public boolean isPending() {
+            return alarm != null;
+        }
+
+        /**
+         * Return the time at which this timeout fires, or last fired.
+         *
+         * @return the wake time, in ticks.
+         */
+        public long getWakeTime() {
+            return wakeTime;
+        }
+
+        /**
+         * The alarm this timeout is pending on, or <tt>null</tt>.
+         */
+        private Alarm alarm = null;
+        private boolean cancelled;
+        private long wakeTime;
+        private KThread thread;
+        private Runnable handler;
+
+        /**
+         * The level and slot holding this timeout, or -1 for the overflow
+         * list, and its neighbours there.
+         */
+        private int level, slot;
+        private Timeout prev, next;
+    }
+
+    /**
+     * Add a timeout to the wheel.
+     */
+    private void add(Timeout timeout, long wakeTime) {
+        Lib.assertTrue(timeout.alarm == null);
+
+        timeout.alarm = this;
+        timeout.cancelled = false;
+        timeout.wakeTime = wakeTime;
+
+        insert(timeout);
     }
 
-    private class WaitThread implements Comparable<WaitThread> {
-        KThread thread;
-        long wakeTime;
+    /**
+     * Remove a pending timeout from the wheel.
+     */
+    private void remove(Timeout timeout) {
+        unlink(timeout);
+        timeout.alarm = null;
+    }
 
-        public WaitThread(KThread thread, long wakeTime) {
-            this.thread = thread;
-            this.wakeTime = wakeTime;
+    /**
+     * Link a timeout into the slot for its wake time, relative to the current
+     * time. A timeout that is already due goes in the current level 0 slot.
+     */
+    private void insert(Timeout timeout) {
+        long time = Math.max(timeout.wakeTime, currentTime);
+        long difference = time ^ currentTime;
+
+        int level = (difference < numSlots) ? 0 :
+            (63 - Long.numberOfLeadingZeros(difference)) / slotBits;
+
+        if (level >= numLevels) {
+            timeout.level = -1;
+            timeout.prev = null;
+            timeout.next = overflow;
+            if (overflow != null)
+                overflow.prev = timeout;
+            overflow = timeout;
+            return;
         }
 
-        public int compareTo(WaitThread thread) {
-            return Long.compare(this.wakeTime, thread.wakeTime);
+        int slot = (int) (time >>> (level * slotBits)) & (numSlots - 1);
+        Timeout[] levelHeads = heads[level];
+
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = levelHeads[slot];
+        if (levelHeads[slot] != null)
+            levelHeads[slot].prev = timeout;
+        else
+            occupied[level] |= 1L << slot;
+        levelHeads[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
 
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else if (timeout.level < 0)
+            overflow = timeout.next;
+        else {
+            heads[timeout.level][timeout.slot] = timeout.next;
+            if (timeout.next == null)
+                occupied[timeout.level] &= ~(1L << timeout.slot);
         }
+
+        timeout.prev = timeout.next = null;
     }
 
-    private PriorityQueue<WaitThread> waitQueue = new PriorityQueue<>();
+    /**
+     * Fire every timeout whose wake time is at or before <i>now</i>, in order
+     * of wake time.
+     */
+    private void advance(long now) {
+        while (currentTime <= now) {
+            int index = (int) currentTime & (numSlots - 1);
+            long bits = occupied[0] & (-1L << index);
+
+            if (bits == 0) {
+                // nothing left in level 0, so skip to the next higher slot
+                setCurrentTime(Math.min(nextCascadeTime(), now + 1));
+                continue;
+            }
+
+            int slot = Long.numberOfTrailingZeros(bits);
+            long time = (currentTime & ~(long) (numSlots - 1)) | slot;
+            if (time > now)
+                break;
+
+            Timeout list = heads[0][slot];
+            heads[0][slot] = null;
+            occupied[0] &= ~(1L << slot);
+
+            // move on first, so that timeouts added by callbacks are not lost
+            setCurrentTime(time + 1);
+            fire(list);
+        }
+    }
+
+    /**
+     * Return the start of the first non-empty slot after the current one in
+     * the lowest level that has one, or the time at which the overflow list
+     * is due if every level is empty. Only called when nothing is left in
+     * level 0, so no timeout can become due before then.
+     *
+     * <p>
+     * Each non-empty slot of a level starts after the current time, within
+     * the current slot of the level above, so the lowest level with a
+     * non-empty slot holds the earliest one.
+     */
+    private long nextCascadeTime() {
+        for (int level = 1; level < numLevels; level++) {
+            int shift = level * slotBits;
+            int index = (int) (currentTime >>> shift) & (numSlots - 1);
+            long bits = occupied[level] & (-2L << index);
+
+            if (bits != 0) {
+                long start = currentTime & -(1L << (shift + slotBits));
+                return start |
+                    ((long) Long.numberOfTrailingZeros(bits) << shift);
+            }
+        }
+
+        return (currentTime | ((1L << (numLevels * slotBits)) - 1)) + 1;
+    }
+
+    /**
+     * Fire a list of timeouts taken from a level 0 slot, in the order they
+     * were added.
+     */
+    private void fire(Timeout list) {
+        for (Timeout last = last(list); last != null; ) {
+            Timeout timeout = last;
+            last = timeout.prev;
+
+            timeout.prev = timeout.next = null;
+            timeout.alarm = null;
+
+            if (timeout.thread != null) {
+                Lib.debug(dbgAlarm, "Waking up thread " + timeout.thread.toString()
+                    + " at " + Machine.timer().getTime() + " cycles");
+                timeout.thread.ready();
+            }
+            else {
+                timeout.handler.run();
+            }
+        }
+    }
+
+    /**
+     * Move the current time forward. If it reaches the start of a slot in a
+     * higher level, empty that slot into the levels below, highest level
+     * first.
+     */
+    private void setCurrentTime(long time) {
+        currentTime = time;
+
+        int level = 0;
+        while (level < numLevels &&
+            (time & ((1L << ((level + 1) * slotBits)) - 1)) == 0)
+            level++;
+
+        if (level == numLevels) {
+            Timeout list = overflow;
+            overflow = null;
+            cascade(list);
+            level--;
+        }
+
+        for (; level > 0; level--) {
+            int slot = (int) (time >>> (level * slotBits)) & (numSlots - 1);
+            Timeout list = heads[level][slot];
+            if (list == null)
+                continue;
+
+            heads[level][slot] = null;
+            occupied[level] &= ~(1L << slot);
+            cascade(list);
+        }
+    }
+
+    /**
+     * Re-insert a list of timeouts relative to the current time, keeping the
+     * order in which they were added.
+     */
+    private void cascade(Timeout list) {
+        for (Timeout last = last(list); last != null; ) {
+            Timeout timeout = last;
+            last = timeout.prev;
+            insert(timeout);
+        }
+    }
+
+    /**
+     * Return the last timeout in a slot's list, which is the one added first.
+     */
+    private static Timeout last(Timeout list) {
+        if (list != null) {
+            while (list.next != null)
+                list = list.next;
+        }
+
+        return list;
+    }
+
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final int numLevels = 6;
+
+    /**
+     * The slots of each level, and a bitmap of the non-empty slots.
+     */
+    private Timeout[][] heads = new Timeout[numLevels][numSlots];
+    private long[] occupied = new long[numLevels];
+    /**
+     * Timeouts too far in the future for the highest level.
+     */
+    private Timeout overflow = null;
+    /**
+     * The earliest time not yet processed by the wheel.
+     */
+    private long currentTime;
+
+    /**
+     * The number of timer interrupts, and how many of them made the current
+     * thread yield.
+     */
+    long numInterrupts = 0;
+    long numPreemptions = 0;
+
     private static final char dbgAlarm = 'w';
 
     public static void selfTest() {
@@ -109,6 +476,32 @@ public class Alarm {
             arrKT[i].join();
         }
 
+        // a long wait cancelled early, and a callback that never runs
+        final Timeout timeout = new Timeout();
+        final boolean[] expired = {true};
+        KThread sleeper = new KThread(new Runnable() {
+            public void run() {
+                expired[0] = ThreadedKernel.alarm.waitUntil(1000000, timeout);
+            }
+        }).setName("Alarm-cancelled");
+        sleeper.fork();
+
+        Timeout callback = ThreadedKernel.alarm.schedule(100000, new Runnable() {
+            public void run() {
+                Lib.assertNotReached("cancelled callback ran");
+            }
+        });
+
+        long start = Machine.timer().getTime();
+        ThreadedKernel.alarm.waitUntil(2000);
+        Lib.assertTrue(callback.cancel());
+        Lib.assertTrue(timeout.cancel());
+        sleeper.join();
+
+        Lib.assertTrue(!expired[0] && !timeout.isPending());
+        Lib.assertTrue(Machine.timer().getTime() - start < 1000000);
+        Lib.assertTrue(!timeout.cancel());
+
         Lib.debug(dbgAlarm, "Exit Alarm.selfTest");
 
     }
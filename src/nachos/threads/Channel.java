@@ -0,0 +1,418 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded FIFO of 32-bit words shared by any number of
+ * sending and receiving threads. A sender blocks only while the channel is
+ * full, and a receiver only while it is empty. Words can be moved one at a
+ * time or in batches.
+ *
+ * <p>
+ * A channel with a capacity of 0 is synchronous, like a
+ * <tt>Communicator</tt>: a send does not return until a receiver has taken
+ * every word it sent.
+ *
+ * <p>
+ * The words are kept in an <tt>int</tt> ring buffer. Unlike
+ * <tt>Communicator</tt>, each change of state wakes a single waiting thread,
+ * and a thread that finds more data (or space) left after it is done passes
+ * the wake-up on, so threads are not woken only to go back to sleep.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param capacity the number of words the channel can hold, or 0 for a
+     *                 synchronous channel.
+     */
+    public Channel(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+
+        this.capacity = capacity;
+        buffer = new int[Math.max(capacity, 1)];
+
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+        taken = new Condition2(lock);
+    }
+
+    /**
+     * Return the number of words this channel can hold.
+     *
+     * @return the capacity, or 0 if this channel is synchronous.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Send a word, waiting while the channel is full. On a synchronous
+     * channel, wait until a receiver has taken it.
+     *
+     * @param word the word to send.
+     */
+    public void send(int word) {
+        lock.acquire();
+
+        while (count == buffer.length)
+            notFull.sleep();
+
+        buffer[(head + count) % buffer.length] = word;
+        count++;
+        sent++;
+
+        notEmpty.wake();
+        if (count < buffer.length)
+            notFull.wake();
+
+        waitUntilTaken(sent);
+
+        lock.release();
+    }
+
+    /**
+     * Send every word in an array, in order, waiting whenever the channel is
+     * full. Words sent by other threads may come between them if the array
+     * does not fit in the channel. On a synchronous channel, wait until a
+     * receiver has taken all of them.
+     *
+     * @param words the words to send.
+     */
+    public void sendBatch(int[] words) {
+        sendBatch(words, 0, words.length);
+    }
+
+    /**
+     * Send <i>length</i> words from an array, starting at <i>offset</i>.
+     *
+     * @param words  the array holding the words to send.
+     * @param offset the index of the first word to send.
+     * @param length the number of words to send.
+     * @see #sendBatch(int[])
+     */
+    public void sendBatch(int[] words, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 &&
+            offset + length <= words.length);
+
+        lock.acquire();
+
+        while (length > 0) {
+            while (count == buffer.length)
+                notFull.sleep();
+
+            int amount = copyIn(words, offset, length);
+            offset += amount;
+            length -= amount;
+            sent += amount;
+
+            notEmpty.wake();
+        }
+
+        if (count < buffer.length)
+            notFull.wake();
+
+        waitUntilTaken(sent);
+
+        lock.release();
+    }
+
+    /**
+     * Receive a word, waiting while the channel is empty.
+     *
+     * @return the oldest word in the channel.
+     */
+    public int receive() {
+        lock.acquire();
+
+        while (count == 0)
+            notEmpty.sleep();
+
+        int word = buffer[head];
+        head = (head + 1) % buffer.length;
+        count--;
+
+        received();
+
+        lock.release();
+        return word;
+    }
+
+    /**
+     * Receive as many words as are available, up to the length of an array,
+     * waiting while the channel is empty.
+     *
+     * @param words the array to store the words in.
+     * @return the number of words received, at least 1 unless
+     * <i>words</i> is empty.
+     */
+    public int receiveBatch(int[] words) {
+        return receiveBatch(words, 0, words.length);
+    }
+
+    /**
+     * Receive up to <i>length</i> words into an array, starting at
+     * <i>offset</i>.
+     *
+     * @param words  the array to store the words in.
+     * @param offset the index at which to store the first word.
+     * @param length the maximum number of words to receive.
+     * @return the number of words received.
+     * @see #receiveBatch(int[])
+     */
+    public int receiveBatch(int[] words, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 &&
+            offset + length <= words.length);
+
+        if (length == 0)
+            return 0;
+
+        lock.acquire();
+
+        while (count == 0)
+            notEmpty.sleep();
+
+        int amount = copyOut(words, offset, length);
+
+        received();
+
+        lock.release();
+        return amount;
+    }
+
+    /**
+     * Copy as many words as fit into the buffer, and return how many.
+     */
+    private int copyIn(int[] words, int offset, int length) {
+        int amount = Math.min(length, buffer.length - count);
+        int tail = (head + count) % buffer.length;
+
+        int first = Math.min(amount, buffer.length - tail);
+        System.arraycopy(words, offset, buffer, tail, first);
+        System.arraycopy(words, offset + first, buffer, 0, amount - first);
+
+        count += amount;
+        return amount;
+    }
+
+    /**
+     * Copy as many words as are available out of the buffer, and return how
+     * many.
+     */
+    private int copyOut(int[] words, int offset, int length) {
+        int amount = Math.min(length, count);
+
+        int first = Math.min(amount, buffer.length - head);
+        System.arraycopy(buffer, head, words, offset, first);
+        System.arraycopy(buffer, 0, words, offset + first, amount - first);
+
+        head = (head + amount) % buffer.length;
+        count -= amount;
+        return amount;
+    }
+
+    /**
+     * Called by a receiver after taking words out of the buffer. Wakes a
+     * sender waiting for space, another receiver if words are left, and on a
+     * synchronous channel, the sender whose word was taken.
+     */
+    private void received() {
+        numTaken = sent - count;
+
+        notFull.wake();
+        if (count > 0)
+            notEmpty.wake();
+
+        if (capacity == 0)
+            taken.wake();
+    }
+
+    /**
+     * On a synchronous channel, wait until a receiver has taken every word up
+     * to the specified one. Senders wait here in the order in which their
+     * last words were sent, which is the order in which those words are
+     * taken, so each receive wakes the right sender.
+     */
+    private void waitUntilTaken(long word) {
+        if (capacity != 0)
+            return;
+
+        while (numTaken < word)
+            taken.sleep();
+    }
+
+    private int capacity;
+    private int[] buffer;
+    /**
+     * The index of the oldest word in <tt>buffer</tt>, and the number of
+     * words in it.
+     */
+    private int head = 0, count = 0;
+    /**
+     * The number of words ever sent, and ever taken by receivers.
+     */
+    private long sent = 0, numTaken = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+    private Condition2 taken;
+
+    /**
+     * Pass words through channels of different capacities, one at a time
+     * and in batches, with several senders and receivers, and check that
+     * every word arrives once and in order from each sender.
+     */
+    public static void selfTest() {
+        check(0, 1);
+        check(1, 1);
+        check(16, 1);
+        check(16, 7);
+        check(100, 64);
+    }
+
+    /**
+     * Time moving a stream of words from one thread to another through a
+     * <tt>Communicator</tt>, and through channels one word at a time and in
+     * batches.
+     */
+    public static void benchmark() {
+        benchmarkCommunicator(1 << 14);
+        benchmark(0, 1, 1 << 14);
+        benchmark(1024, 1, 1 << 20);
+        benchmark(1024, 256, 1 << 20);
+    }
+
+    private static void check(int capacity, final int batch) {
+        final Channel channel = new Channel(capacity);
+        final int numSenders = 3, numReceivers = 3, words = 2000;
+        final long[] sums = new long[numReceivers];
+
+        KThread[] threads = new KThread[numSenders + numReceivers];
+
+        for (int i = 0; i < numSenders; i++) {
+            final int sender = i;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    int[] data = new int[batch];
+                    for (int w = 0; w < words; ) {
+                        int n = Math.min(batch, words - w);
+                        for (int j = 0; j < n; j++)
+                            data[j] = sender * words + w + j;
+                        if (batch == 1)
+                            channel.send(data[0]);
+                        else
+                            channel.sendBatch(data, 0, n);
+                        w += n;
+                    }
+                }
+            }).setName("channel sender " + i);
+        }
+
+        for (int i = 0; i < numReceivers; i++) {
+            final int receiver = i;
+            threads[numSenders + i] = new KThread(new Runnable() {
+                public void run() {
+                    int[] data = new int[batch];
+                    int[] last = {-1, -1, -1};
+                    int total = numSenders * words / numReceivers;
+
+                    for (int w = 0; w < total; ) {
+                        int n = (batch == 1) ? 1 :
+                            channel.receiveBatch(data, 0,
+                                Math.min(batch, total - w));
+                        if (batch == 1)
+                            data[0] = channel.receive();
+
+                        for (int j = 0; j < n; j++) {
+                            int sender = data[j] / words;
+                            Lib.assertTrue(data[j] > last[sender]);
+                            last[sender] = data[j];
+                            sums[receiver] += data[j];
+                        }
+                        w += n;
+                    }
+                }
+            }).setName("channel receiver " + i);
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        long sum = 0;
+        for (int i = 0; i < numReceivers; i++)
+            sum += sums[i];
+
+        long n = (long) numSenders * words;
+        Lib.assertTrue(sum == n * (n - 1) / 2);
+    }
+
+    private static void benchmark(int capacity, final int batch,
+                                  final int words) {
+        final Channel channel = new Channel(capacity);
+
+        long dispatches = KThread.numDispatches;
+        long start = System.nanoTime();
+
+        KThread sender = new KThread(new Runnable() {
+            public void run() {
+                int[] data = new int[batch];
+                for (int w = 0; w < words; w += batch) {
+                    if (batch == 1)
+                        channel.send(w);
+                    else
+                        channel.sendBatch(data);
+                }
+            }
+        }).setName("channel benchmark sender");
+        sender.fork();
+
+        int[] data = new int[batch];
+        for (int w = 0; w < words; ) {
+            if (batch == 1) {
+                channel.receive();
+                w++;
+            }
+            else {
+                w += channel.receiveBatch(data);
+            }
+        }
+        sender.join();
+
+        report("channel(" + capacity + "), batch " + batch, words,
+            System.nanoTime() - start, KThread.numDispatches - dispatches);
+    }
+
+    private static void benchmarkCommunicator(final int words) {
+        final Communicator communicator = new Communicator();
+
+        long dispatches = KThread.numDispatches;
+        long start = System.nanoTime();
+
+        KThread speaker = new KThread(new Runnable() {
+            public void run() {
+                for (int w = 0; w < words; w++)
+                    communicator.speak(w);
+            }
+        }).setName("communicator benchmark speaker");
+        speaker.fork();
+
+        for (int w = 0; w < words; w++)
+            communicator.listen();
+        speaker.join();
+
+        report("communicator", words, System.nanoTime() - start,
+            KThread.numDispatches - dispatches);
+    }
+
+    private static void report(String name, int words, long nanos,
+                               long dispatches) {
+        System.out.println(name + ": " + words + " words in " +
+            nanos / 1000000 + " ms, " +
+            (nanos > 0 ? words * 1000000000L / nanos : 0) + " words/sec, " +
+            dispatches + " dispatches");
+    }
+}
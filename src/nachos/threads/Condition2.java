@@ -2,15 +2,17 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  *
  * <p>
- * You must implement this.
- * S
+ * A woken thread is not made ready directly. Since the waker holds the
+ * associated lock, the woken thread could only block again trying to
+ * reacquire it, so instead it is moved to the lock's wait queue, where it
+ * transfers its priority to the lock holder, and is woken when the lock is
+ * released (see <tt>Lock.release()</tt>). Sleeping threads are linked
+ * through <tt>KThread</tt>, so sleeping and waking do not allocate.
  *
  * @see nachos.threads.Condition
  */
@@ -26,8 +28,6 @@ public class Condition2 {
 
     public Condition2(Lock conditionLock) {
         this.conditionLock = conditionLock;
-
-        waitQueue = new LinkedList<KThread>();
     }
 
     /**
@@ -41,10 +41,21 @@ public class Condition2 {
 
         boolean status = Machine.interrupt().disable();
 
+        KThread thread = KThread.currentThread();
+        thread.nextWaiter = null;
+        if (waitTail == null)
+            waitHead = thread;
+        else
+            waitTail.nextWaiter = thread;
+        waitTail = thread;
+
         conditionLock.release();
-        waitQueue.add(KThread.currentThread());
         KThread.sleep();
-        conditionLock.acquire();
+
+        // the lock may have been handed to this thread while it was waiting
+        if (!conditionLock.isHeldByCurrentThread())
+            conditionLock.acquire();
+
         Machine.interrupt().restore(status);
     }
 
@@ -57,8 +68,14 @@ public class Condition2 {
 
         boolean status = Machine.interrupt().disable();
 
-        if (!waitQueue.isEmpty()) {
-            (waitQueue.removeFirst()).ready();
+        KThread thread = waitHead;
+        if (thread != null) {
+            waitHead = thread.nextWaiter;
+            if (waitHead == null)
+                waitTail = null;
+            thread.nextWaiter = null;
+
+            conditionLock.wakeWhenReleased(thread);
         }
 
         Machine.interrupt().restore(status);
@@ -73,7 +90,7 @@ public class Condition2 {
 
         boolean status = Machine.interrupt().disable();
 
-        while (!waitQueue.isEmpty()) {
+        while (waitHead != null) {
             wake();
         }
         Machine.interrupt().restore(status);
@@ -143,6 +160,9 @@ public class Condition2 {
     }
 
     private Lock conditionLock;
-    // private LinkedList<Lock> waitQueue;
-    private LinkedList<KThread> waitQueue;
+    /**
+     * The sleeping threads, in the order they went to sleep, linked through
+     * <tt>KThread.nextWaiter</tt>.
+     */
+    private KThread waitHead = null, waitTail = null;
 }
@@ -0,0 +1,570 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class.
+ *
+ * <p>
+ * A thread becomes a periodic real-time thread by declaring a period and a
+ * budget with <tt>setRealTime()</tt>: in every period it promises to run for
+ * no more than its budget, and expects to finish that much work by the end of
+ * the period. A thread is admitted only if the total utilization (the sum of
+ * budget / period over all real-time threads) stays at or below 1, which is
+ * the condition under which EDF can meet every deadline.
+ *
+ * <p>
+ * The first period of a thread starts when it is admitted. When it has
+ * finished the work of one period, it calls <tt>waitForNextPeriod()</tt>,
+ * which records whether it met its deadline and how much slack it had, and
+ * sleeps until the next period starts. Its share of the utilization is
+ * released by <tt>clearRealTime()</tt>, or when the thread finishes.
+ *
+ * <p>
+ * Every queue chooses the waiting real-time thread with the earliest absolute
+ * deadline, as measured by <tt>Machine.timer().getTime()</tt>. Only when no
+ * real-time thread is waiting does it choose a best-effort thread, in FIFO
+ * order as with a round-robin scheduler. A real-time thread that runs for
+ * more than its budget in a period is treated as a best-effort thread until
+ * its next period, so that it cannot make other real-time threads miss their
+ * deadlines.
+ *
+ * <p>
+ * Real-time jobs, deadline misses, slack and budget overruns are recorded in
+ * <tt>Stats</tt>. This scheduler does not transfer priority.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+        stats = Machine.stats();
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param transferPriority ignored.
+     * @return a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new EDFQueue();
+    }
+
+    /**
+     * Make the specified thread a periodic real-time thread, if the total
+     * utilization stays at or below 1. If the thread is already a real-time
+     * thread, its period and budget are replaced. Its first period starts
+     * now. Must be called with interrupts disabled.
+     *
+     * @param thread the thread to admit.
+     * @param period the length of each period, in ticks.
+     * @param budget the time the thread may run in each period, in ticks.
+     * @return <tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+     * it would make the total utilization exceed 1, in which case nothing is
+     * changed.
+     */
+    public boolean setRealTime(KThread thread, long period, long budget) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+        EDFState state = getEDFState(thread);
+
+        double newUtilization = utilization + (double) budget / period;
+        if (state.realTime)
+            newUtilization -= (double) state.budget / state.period;
+
+        if (newUtilization > 1 + 1e-9)
+            return false;
+
+        utilization = newUtilization;
+
+        EDFQueue waitingFor = state.waitingFor;
+        if (waitingFor != null)
+            waitingFor.remove(state);
+
+        long now = Machine.timer().getTime();
+
+        state.realTime = true;
+        state.period = period;
+        state.budget = budget;
+        state.deadline = now + period;
+        state.used = 0;
+        state.dispatchTime = now;
+
+        if (waitingFor != null)
+            waitingFor.add(state);
+
+        return true;
+    }
+
+    /**
+     * Make the specified thread a best-effort thread again, and release its
+     * share of the utilization. A real-time thread that finishes is made a
+     * best-effort thread automatically. Must be called with interrupts
+     * disabled.
+     *
+     * @param thread the thread to make a best-effort thread.
+     */
+    public void clearRealTime(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        EDFState state = getEDFState(thread);
+        if (!state.realTime)
+            return;
+
+        utilization -= (double) state.budget / state.period;
+        if (utilization < 1e-9)
+            utilization = 0;
+
+        EDFQueue waitingFor = state.waitingFor;
+        if (waitingFor != null)
+            waitingFor.remove(state);
+
+        state.realTime = false;
+
+        if (waitingFor != null)
+            waitingFor.add(state);
+    }
+
+    /**
+     * Release the utilization of a real-time thread that finishes without
+     * calling <tt>clearRealTime()</tt>.
+     *
+     * @param thread the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (thread.schedulingState != null)
+            clearRealTime(thread);
+    }
+
+    /**
+     * Charge a real-time thread that blocked without waiting on a queue, as
+     * in <tt>Alarm.waitUntil()</tt> or <tt>Condition2.sleep()</tt>, for the
+     * time it ran. A thread that is waiting on a queue was already charged
+     * when it started waiting, so that it was queued by its new budget.
+     *
+     * @param thread the thread that is giving up the processor.
+     */
+    public void threadStopped(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        EDFState state = getEDFState(thread);
+        if (state.waitingFor == null)
+            state.charge();
+    }
+
+    /**
+     * Called by a real-time thread when it has finished the work of its
+     * current period. Records the slack (the time left until the deadline,
+     * negative if the deadline was missed), and sleeps until the next period
+     * starts. If the next period has already started, returns immediately.
+     */
+    public void waitForNextPeriod() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        EDFState state = getEDFState(KThread.currentThread());
+        Lib.assertTrue(state.realTime);
+
+        // count an overrun in the work just finished
+        state.charge();
+
+        long now = Machine.timer().getTime();
+        long slack = state.deadline - now;
+
+        stats.realTimeJobs++;
+        if (slack < 0)
+            stats.deadlineMisses++;
+        stats.totalSlack += slack;
+        stats.minSlack = Math.min(stats.minSlack, slack);
+
+        long release = state.deadline;
+        state.deadline += state.period;
+        state.used = 0;
+
+        if (release > now)
+            ThreadedKernel.alarm.waitUntil(release - now);
+
+        state.dispatchTime = Machine.timer().getTime();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected EDFState getEDFState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new EDFState(thread);
+
+        return (EDFState) thread.schedulingState;
+    }
+
+    /**
+     * Run a set of periodic threads whose utilizations add up to 0.9 next to
+     * a compute-bound best-effort thread, check that a thread that would
+     * overload the processor is turned away, and print the deadline
+     * statistics. Does nothing unless this is the current scheduler.
+     */
+    public static void selfTest() {
+        if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+            return;
+
+        final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+        final int jobs = 20;
+        final long[][] tasks = {{5000, 1500}, {10000, 3000}, {20000, 6000}};
+        final boolean[] done = {false};
+
+        Stats stats = Machine.stats();
+        long startJobs = stats.realTimeJobs;
+        long startMisses = stats.deadlineMisses;
+
+        KThread hog = new KThread(new Runnable() {
+            public void run() {
+                while (!done[0]) {
+                    Machine.interrupt().disable();
+                    Machine.interrupt().enable();
+                }
+            }
+        }).setName("EDF best effort");
+        hog.fork();
+
+        KThread[] threads = new KThread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final long budget = tasks[i][1];
+
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < jobs; j++) {
+                        // use most of the budget
+                        long end = Machine.timer().getTime() + budget * 3 / 4;
+                        while (Machine.timer().getTime() < end) {
+                            Machine.interrupt().disable();
+                            Machine.interrupt().enable();
+                        }
+
+                        scheduler.waitForNextPeriod();
+                    }
+                }
+            }).setName("EDF periodic " + i);
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (int i = 0; i < tasks.length; i++)
+            Lib.assertTrue(scheduler.setRealTime(threads[i], tasks[i][0],
+                tasks[i][1]));
+        Lib.assertTrue(!scheduler.setRealTime(hog, 10000, 2000));
+        Machine.interrupt().restore(intStatus);
+
+        for (int i = 0; i < tasks.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < tasks.length; i++)
+            threads[i].join();
+
+        // the finished threads gave back their utilization
+        intStatus = Machine.interrupt().disable();
+        Lib.assertTrue(scheduler.setRealTime(hog, 10000, 2000));
+        scheduler.clearRealTime(hog);
+        Machine.interrupt().restore(intStatus);
+
+        done[0] = true;
+        hog.join();
+
+        System.out.println("EDF: " + (stats.realTimeJobs - startJobs) +
+            " jobs, " + (stats.deadlineMisses - startMisses) +
+            " deadline misses");
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting real-time threads in a
+     * min-heap ordered by deadline, and its best-effort threads in a FIFO
+     * list.
+     */
+    protected class EDFQueue extends ThreadQueue {
+        EDFQueue() {
+        }
+
+        /**
+         * Add a thread to the queue. If the thread is the current thread, it
+         * is giving up the processor, so the time it has run is charged to
+         * its budget first.
+         *
+         * @param thread the thread to add to the queue.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            EDFState state = getEDFState(thread);
+            Lib.assertTrue(state.waitingFor == null);
+
+            if (thread == KThread.currentThread())
+                state.charge();
+
+            add(state);
+        }
+
+        /**
+         * Remove the real-time thread with the earliest deadline, or if there
+         * is none, the first best-effort thread.
+         *
+         * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+         */
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            EDFState state = pickNextThread();
+            if (state == null)
+                return null;
+
+            remove(state);
+            state.dispatchTime = Machine.timer().getTime();
+
+            return state.thread;
+        }
+
+        /**
+         * Return the next thread that <tt>nextThread()</tt> would return,
+         * without modifying the state of this queue.
+         *
+         * @return the next thread that <tt>nextThread()</tt> would
+         * return.
+         */
+        protected EDFState pickNextThread() {
+            return (size > 0) ? heap[0] : head;
+        }
+
+        /**
+         * The specified thread has received exclusive access, without using
+         * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing needs to
+         * be done.
+         */
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i].thread + " ");
+            for (EDFState s = head; s != null; s = s.nextWaiter)
+                System.out.print(s.thread + " ");
+        }
+
+        /**
+         * Add a waiting thread to the heap if it is a real-time thread within
+         * its budget, or to the end of the FIFO list otherwise.
+         *
+         * @param state the thread to add.
+         */
+        void add(EDFState state) {
+            state.waitingFor = this;
+            state.waitSequence = numWaits++;
+
+            if (state.scheduledByDeadline()) {
+                if (size == heap.length) {
+                    EDFState[] newHeap = new EDFState[size * 2];
+                    System.arraycopy(heap, 0, newHeap, 0, size);
+                    heap = newHeap;
+                }
+
+                heap[size] = state;
+                state.heapIndex = size++;
+                siftUp(state.heapIndex);
+            }
+            else {
+                state.heapIndex = -1;
+                state.prevWaiter = tail;
+                state.nextWaiter = null;
+                if (tail == null)
+                    head = state;
+                else
+                    tail.nextWaiter = state;
+                tail = state;
+            }
+        }
+
+        /**
+         * Remove a waiting thread from this queue.
+         *
+         * @param state the thread to remove.
+         */
+        void remove(EDFState state) {
+            int i = state.heapIndex;
+
+            if (i >= 0) {
+                size--;
+                if (i != size) {
+                    EDFState moved = heap[size];
+                    set(i, moved);
+                    siftUp(i);
+                    siftDown(moved.heapIndex);
+                }
+                heap[size] = null;
+            }
+            else {
+                if (state.prevWaiter == null)
+                    head = state.nextWaiter;
+                else
+                    state.prevWaiter.nextWaiter = state.nextWaiter;
+                if (state.nextWaiter == null)
+                    tail = state.prevWaiter;
+                else
+                    state.nextWaiter.prevWaiter = state.prevWaiter;
+
+                state.prevWaiter = state.nextWaiter = null;
+            }
+
+            state.waitingFor = null;
+        }
+
+        private boolean before(EDFState a, EDFState b) {
+            if (a.deadline != b.deadline)
+                return a.deadline < b.deadline;
+
+            return a.waitSequence < b.waitSequence;
+        }
+
+        private void set(int i, EDFState state) {
+            heap[i] = state;
+            state.heapIndex = i;
+        }
+
+        private void siftUp(int i) {
+            EDFState state = heap[i];
+
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(state, heap[parent]))
+                    break;
+
+                set(i, heap[parent]);
+                i = parent;
+            }
+
+            set(i, state);
+        }
+
+        private void siftDown(int i) {
+            EDFState state = heap[i];
+
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+
+                if (!before(heap[child], state))
+                    break;
+
+                set(i, heap[child]);
+                i = child;
+            }
+
+            set(i, state);
+        }
+
+        /**
+         * The waiting real-time threads, as a binary min-heap ordered by
+         * deadline and then by when they started waiting.
+         */
+        private EDFState[] heap = new EDFState[4];
+        private int size = 0;
+        /**
+         * The waiting best-effort threads, in FIFO order.
+         */
+        private EDFState head = null, tail = null;
+        private long numWaits = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class EDFState {
+        /**
+         * Allocate a new <tt>EDFState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public EDFState(KThread thread) {
+            this.thread = thread;
+
+            dispatchTime = Machine.timer().getTime();
+        }
+
+        /**
+         * Return <tt>true</tt> if the associated thread should be chosen by
+         * its deadline, that is, if it is a real-time thread that has not
+         * overrun its budget in the current period.
+         */
+        boolean scheduledByDeadline() {
+            return realTime && used < budget;
+        }
+
+        /**
+         * Charge the associated thread for the time it has run since it was
+         * last chosen or charged. Called when the thread gives up the
+         * processor, and when it finishes the work of a period.
+         */
+        void charge() {
+            long now = Machine.timer().getTime();
+            long ran = now - dispatchTime;
+            dispatchTime = now;
+
+            if (!realTime || used >= budget)
+                return;
+
+            used += ran;
+            if (used >= budget)
+                stats.budgetOverruns++;
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * <tt>true</tt> if the associated thread is a real-time thread.
+         */
+        protected boolean realTime = false;
+        /**
+         * The period and budget of the associated thread, in ticks, and the
+         * absolute deadline of its current period.
+         */
+        protected long period, budget, deadline;
+
+        /**
+         * The time the associated thread has run in its current period, and
+         * when it was last chosen to run.
+         */
+        private long used = 0;
+        private long dispatchTime;
+
+        /**
+         * The queue the associated thread is waiting on, or <tt>null</tt>, and
+         * its place there: an index into the heap, or -1 and its neighbours
+         * in the FIFO list.
+         */
+        private EDFQueue waitingFor = null;
+        private int heapIndex = -1;
+        private EDFState prevWaiter = null, nextWaiter = null;
+        private long waitSequence;
+    }
+
+    /**
+     * The sum of budget / period over all real-time threads.
+     */
+    private double utilization = 0;
+    private Stats stats;
+}
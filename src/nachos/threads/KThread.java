@@ -38,6 +38,27 @@ public class KThread {
         return currentThread;
     }
 
+    /**
+     * Return whether any thread other than the current thread and the idle
+     * thread is ready to run, in which case <tt>yield()</tt> may switch to
+     * another thread.
+     *
+     * @return <tt>true</tt> if the ready queue is not empty.
+     */
+    public static boolean threadsReady() {
+        return numReadyThreads > 0;
+    }
+
+    /**
+     * Return how long the current thread has run since it was last
+     * dispatched by the scheduler.
+     *
+     * @return the length of the current time slice, in ticks.
+     */
+    public static long runTime() {
+        return Machine.timer().getTime() - dispatchTime;
+    }
+
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
      * create an idle thread as well.
@@ -186,6 +207,8 @@ public class KThread {
 
         Machine.autoGrader().finishingCurrentThread();
 
+        ThreadedKernel.scheduler.threadFinished(currentThread);
+
         Lib.assertTrue(toBeDestroyed == null);
         toBeDestroyed = currentThread;
 
@@ -265,8 +288,10 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReadyThreads++;
+        }
 
         Machine.autoGrader().readyThread(this);
     }
@@ -287,11 +312,10 @@ public class KThread {
         boolean intStatus = Machine.interrupt().disable();
 
         if (joinQueue == null) {
-            /* The transferPriority param of newThreadQueue is ignored
-             * when the scheduler used is RoundRobinScheduler.
-             * We can pass true or false and it won't matter.
+            /* Threads waiting to join donate their priority (or tickets) to
+             * this thread. RoundRobinScheduler ignores transferPriority.
              */
-            joinQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
             joinQueue.acquire(this);
         }
 
@@ -310,14 +334,28 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>KThread.ticklessIdle</tt> is set, the idle thread skips ahead
+     * to the next pending interrupt instead of spinning until it is due.
+     * Interrupts are delivered at exactly the same times, but the autograder
+     * no longer sees every turn of the idle loop.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
 
+        final boolean tickless = Config.getBoolean("KThread.ticklessIdle",
+            false);
+
         idleThread = new KThread(new Runnable() {
             public void run() {
-                while (true)
+                while (true) {
+                    // nothing can run until the next interrupt
+                    if (tickless && numReadyThreads == 0)
+                        Machine.interrupt().skipIdleTicks();
+
                     yield();
+                }
             }
         });
         idleThread.setName("idle");
@@ -328,13 +366,19 @@ public class KThread {
     }
 
     /**
-     * Determine the next thread to run, then dispatch the CPU to the thread
+     * Tell the scheduler that the current thread is giving up the CPU,
+     * determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
+        if (currentThread != idleThread)
+            ThreadedKernel.scheduler.threadStopped(currentThread);
+
         KThread nextThread = readyQueue.nextThread();
         if (nextThread == null)
             nextThread = idleThread;
+        else
+            numReadyThreads--;
 
         nextThread.run();
     }
@@ -369,6 +413,8 @@ public class KThread {
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString() + " to: " + toString());
 
         currentThread = this;
+        dispatchTime = Machine.timer().getTime();
+        numDispatches++;
 
         tcb.contextSwitch();
 
@@ -477,5 +523,39 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /**
+     * The number of threads in the ready queue.
+     */
+    private static int numReadyThreads = 0;
+    /**
+     * When the current thread was dispatched, and how many times a thread has
+     * been dispatched.
+     */
+    private static long dispatchTime = 0;
+    static long numDispatches = 0;
     private ThreadQueue joinQueue = null;
+    /**
+     * The timeout this thread uses to sleep in <tt>Alarm.waitUntil()</tt>,
+     * kept so that sleeping does not allocate.
+     */
+    Alarm.Timeout sleepTimeout = null;
+    /**
+     * The next thread sleeping on the same <tt>Condition2</tt>, or taken off
+     * the same <tt>ReadWriteLock</tt> queue while the queue is handed over.
+     */
+    KThread nextWaiter = null;
+    /**
+     * Set while this thread, woken from a <tt>Condition2</tt>, waits on the
+     * lock's wait queue to reacquire the lock.
+     */
+    boolean reacquiring = false;
+    /**
+     * The number of units this thread is waiting for in
+     * <tt>Semaphore.P(n)</tt>.
+     */
+    int waitUnits;
+    /**
+     * The <tt>ReadWriteLock</tt>s this thread holds for reading.
+     */
+    ReadWriteLock.Hold readHolds = null;
 }
@@ -38,6 +38,7 @@ public class Lock {
 
         if (lockHolder != null) {
             waitQueue.waitForAccess(thread);
+            numWaiting++;
             KThread.sleep();
         } else {
             waitQueue.acquire(thread);
@@ -51,18 +52,59 @@ public class Lock {
 
     /**
      * Atomically release this lock, allowing other threads to acquire it.
+     *
+     * <p>
+     * The lock is normally handed to the next waiting thread. But if that
+     * thread was woken through <tt>wakeWhenReleased()</tt> and no other
+     * thread is waiting, the lock is left free and the thread is only made
+     * ready, to acquire the lock when it runs. The current thread, which has
+     * usually just woken it, can then acquire the lock again without
+     * blocking.
      */
     public void release() {
         Lib.assertTrue(isHeldByCurrentThread());
 
         boolean intStatus = Machine.interrupt().disable();
 
-        if ((lockHolder = waitQueue.nextThread()) != null)
-            lockHolder.ready();
+        KThread thread = waitQueue.nextThread();
+        if (thread != null) {
+            numWaiting--;
+
+            if (thread.reacquiring && numWaiting == 0)
+                lockHolder = null;
+            else
+                lockHolder = thread;
+
+            thread.reacquiring = false;
+            thread.ready();
+        }
+        else {
+            lockHolder = null;
+        }
 
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Wake a blocked thread once this lock is released, rather than now,
+     * while the current thread holds it and the woken thread could only
+     * block trying to acquire it. The thread waits on this lock's wait queue
+     * until then, so it transfers its priority to the holder as if it had
+     * called <tt>acquire()</tt>. The woken thread may already hold the lock
+     * when it runs, or may still have to acquire it. The current thread must
+     * hold this lock, and interrupts must be disabled.
+     *
+     * @param thread the blocked thread to wake.
+     */
+    void wakeWhenReleased(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(isHeldByCurrentThread());
+
+        thread.reacquiring = true;
+        waitQueue.waitForAccess(thread);
+        numWaiting++;
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,6 +115,10 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    /**
+     * The number of threads on <tt>waitQueue</tt>.
+     */
+    private int numWaiting = 0;
     private ThreadQueue waitQueue =
         ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -25,6 +25,12 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets all take time logarithmic in the number of waiting threads. A
+ * change in tickets is passed along the donation chain as a difference.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +48,399 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-        // implement me
-        return null;
+        return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLotteryState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLotteryState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+            priority <= priorityMaximum);
+
+        getLotteryState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param thread the thread whose lottery state to return.
+     * @return the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new LotteryState(thread);
+
+        return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+        LotteryQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getLotteryState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getLotteryState(thread).acquire(this);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            setOwner(null);
+
+            LotteryState state = pickNextThread();
+            if (state == null)
+                return null;
+
+            remove(state);
+            state.acquire(this);
+
+            return state.thread;
+        }
+
+        /**
+         * Hold a lottery among the waiting threads. Each call may choose a
+         * different thread.
+         *
+         * @return the winning thread, or <tt>null</tt> if no threads are
+         * waiting.
+         */
+        protected LotteryState pickNextThread() {
+            if (totalTickets == 0)
+                return null;
+
+            long ticket = (long) (Lib.random() * totalTickets);
+            if (ticket >= totalTickets)
+                ticket = totalTickets - 1;
+
+            // find the slot whose range of tickets contains the winner
+            int slot = 0;
+            for (int step = slots.length >> 1; step > 0; step >>= 1) {
+                if (tree[slot + step] <= ticket) {
+                    slot += step;
+                    ticket -= tree[slot];
+                }
+            }
+
+            return slots[slot + 1];
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 1; i < slots.length; i++) {
+                if (slots[i] != null)
+                    System.out.print(slots[i].thread + " ");
+            }
+        }
+
+        /**
+         * Add a waiting thread to this queue.
+         *
+         * @param state the thread to add.
+         */
+        void add(LotteryState state) {
+            if (numFreeSlots == 0)
+                grow();
+
+            int slot = freeSlots[--numFreeSlots];
+            slots[slot] = state;
+            state.waitSlot = slot;
+
+            changeTickets(state, state.effectiveTickets);
+        }
+
+        /**
+         * Remove a waiting thread from this queue.
+         *
+         * @param state the thread to remove.
+         */
+        void remove(LotteryState state) {
+            int slot = state.waitSlot;
+
+            changeTickets(state, -state.effectiveTickets);
+
+            slots[slot] = null;
+            freeSlots[numFreeSlots++] = slot;
+            state.waitingFor = null;
+        }
+
+        /**
+         * Add to the tickets held by a waiting thread, and pass the change on
+         * to the owner.
+         *
+         * @param state the waiting thread.
+         * @param delta the number of tickets to add.
+         */
+        void changeTickets(LotteryState state, long delta) {
+            for (int i = state.waitSlot; i < slots.length; i += i & -i)
+                tree[i] += delta;
+
+            totalTickets += delta;
+
+            if (transferPriority && owner != null)
+                owner.changeDonation(delta);
+        }
+
+        /**
+         * Give access to the specified thread, moving this queue's donation
+         * from the previous owner to it.
+         *
+         * @param state the new owner, or <tt>null</tt> if no thread has
+         *              access.
+         */
+        void setOwner(LotteryState state) {
+            if (transferPriority && owner != null)
+                owner.changeDonation(-totalTickets);
+
+            owner = state;
+
+            if (transferPriority && owner != null)
+                owner.changeDonation(totalTickets);
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree.
+         */
+        private void grow() {
+            int oldLength = slots.length;
+            int length = oldLength * 2;
+
+            LotteryState[] oldSlots = slots;
+            slots = new LotteryState[length];
+            System.arraycopy(oldSlots, 0, slots, 0, oldLength);
+
+            tree = new long[length];
+            for (int i = 1; i < length; i++) {
+                if (slots[i] != null)
+                    tree[i] += slots[i].effectiveTickets;
+
+                int parent = i + (i & -i);
+                if (parent < length)
+                    tree[parent] += tree[i];
+            }
+
+            freeSlots = new int[length];
+            numFreeSlots = 0;
+            for (int i = length - 1; i >= oldLength; i--)
+                freeSlots[numFreeSlots++] = i;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The waiting threads, indexed by slot from 1. The length is always a
+         * power of two, and slot 0 is never used.
+         */
+        private LotteryState[] slots = new LotteryState[1];
+        /**
+         * A Fenwick tree over <tt>slots</tt>: element <i>i</i> holds the
+         * tickets in the <i>i</i> &amp; -<i>i</i> slots ending at <i>i</i>.
+         */
+        private long[] tree = new long[1];
+        /**
+         * A stack of the unused slots.
+         */
+        private int[] freeSlots = new int[0];
+        private int numFreeSlots = 0;
+        /**
+         * The tickets held by all waiting threads, which is also the number
+         * donated to the owner if this queue transfers priority.
+         */
+        private long totalTickets = 0;
+        /**
+         * The thread that currently has access, or <tt>null</tt>.
+         */
+        private LotteryState owner = null;
+    }
+
+    /**
+     * The lottery state of a thread: its own tickets, the tickets donated to
+     * it, and the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            this.thread = thread;
+
+            tickets = priorityDefault;
+            effectiveTickets = tickets;
+        }
+
+        /**
+         * Return the number of tickets the associated thread holds.
+         *
+         * @return the tickets of the associated thread.
+         */
+        public int getPriority() {
+            return tickets;
+        }
+
+        /**
+         * Return the number of tickets of the associated thread, including
+         * donated tickets, limited to <tt>Integer.MAX_VALUE</tt>.
+         *
+         * @return the effective tickets of the associated thread.
+         */
+        public int getEffectivePriority() {
+            return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Set the number of tickets of the associated thread.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setPriority(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+
+            changeEffectiveTickets(delta);
+        }
+
+        /**
+         * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+         * the associated thread) is invoked on the specified queue.
+         *
+         * @param waitQueue the queue that the associated thread is
+         *                  now waiting on.
+         */
+        public void waitForAccess(LotteryQueue waitQueue) {
+            Lib.assertTrue(waitingFor == null);
+
+            waitingFor = waitQueue;
+            waitQueue.add(this);
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>.
+         *
+         * @param waitQueue the queue the associated thread now owns.
+         */
+        public void acquire(LotteryQueue waitQueue) {
+            Lib.assertTrue(waitingFor != waitQueue);
+
+            waitQueue.setOwner(this);
+        }
+
+        /**
+         * Called when the tickets donated by a queue owned by the associated
+         * thread change.
+         *
+         * @param delta the change in donated tickets.
+         */
+        void changeDonation(long delta) {
+            changeEffectiveTickets(delta);
+        }
+
+        private void changeEffectiveTickets(long delta) {
+            if (delta == 0)
+                return;
+
+            effectiveTickets += delta;
+
+            if (waitingFor != null)
+                waitingFor.changeTickets(this, delta);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected int tickets;
+        /**
+         * <tt>tickets</tt> plus all the tickets donated to the associated
+         * thread.
+         */
+        protected long effectiveTickets;
+
+        /**
+         * The queue the associated thread is waiting on, or <tt>null</tt>, and
+         * its slot there.
+         */
+        private LotteryQueue waitingFor = null;
+        private int waitSlot;
     }
 }
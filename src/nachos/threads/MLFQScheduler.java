@@ -0,0 +1,452 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, and a thread at a higher level
+ * is always chosen before a thread at a lower one. Threads at the same level
+ * are chosen in FIFO order, as with a round-robin scheduler. Every thread
+ * starts at the highest level (level 0). Whenever a thread gives up the
+ * processor, whether it was preempted by the timer interrupt in
+ * <tt>Alarm</tt>, yielded, blocked or finished, the time it ran is charged
+ * to it. Once a thread has run for its
+ * level's allotment, it moves down a level. Threads that mostly wait for
+ * semaphores, condition variables or the console use little of their
+ * allotment, so they stay at high levels ahead of compute-bound threads.
+ *
+ * <p>
+ * To prevent starvation, all threads are moved back to the highest level at
+ * the end of every boost period.
+ *
+ * <p>
+ * The number of levels, the allotment of the highest level (each lower level
+ * gets twice the allotment of the one above it), and the boost period are set
+ * by <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostPeriod</tt>. The time spent, the number of threads
+ * chosen, and the number of threads waiting on queues at each level are
+ * recorded in <tt>Stats</tt>.
+ *
+ * <p>
+ * Like a round-robin scheduler, this scheduler ignores priorities and does
+ * not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+        numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+        quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+        boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod", 50000);
+
+        Lib.assertTrue(numLevels >= 1 && numLevels <= 30);
+        Lib.assertTrue(quantum > 0 && boostPeriod > 0);
+
+        stats = Machine.stats();
+        stats.schedulerLevelTicks = new long[numLevels];
+        stats.schedulerLevelChoices = new long[numLevels];
+        stats.schedulerLevelWaiting = new long[numLevels];
+        stats.schedulerLevelPeakWaiting = new long[numLevels];
+        stats.schedulerLevelWaitingTicks = new long[numLevels];
+    }
+
+    /**
+     * Allocate a new multilevel thread queue.
+     *
+     * @param transferPriority ignored.
+     * @return a new multilevel thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new MLFQQueue();
+    }
+
+    /**
+     * Return the level of the specified thread as a priority, where higher
+     * levels have higher priorities.
+     *
+     * @param thread the thread to get the priority of.
+     * @return the thread's priority.
+     */
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState state = getThreadState(thread);
+        int level = (state.lastBoost == currentBoost()) ? state.level : 0;
+
+        return numLevels - 1 - level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        return getPriority(thread);
+    }
+
+    /**
+     * Charge a thread that blocked without waiting on a queue, as in
+     * <tt>Alarm.waitUntil()</tt> or <tt>Condition2.sleep()</tt>, for the time
+     * it ran. A thread that is waiting on a queue was already charged when it
+     * started waiting, so that it was queued at its new level.
+     *
+     * @param thread the thread that is giving up the processor.
+     */
+    public void threadStopped(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState state = getThreadState(thread);
+        if (!state.waiting)
+            state.charge();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of boost periods that have ended.
+     */
+    private long currentBoost() {
+        return Machine.timer().getTime() / boostPeriod;
+    }
+
+    /**
+     * Return the time a thread may run at the specified level before it is
+     * moved down.
+     */
+    private long allotment(int level) {
+        return (long) quantum << level;
+    }
+
+    /**
+     * Record that the number of threads waiting at the specified level has
+     * changed.
+     *
+     * @param level the level.
+     * @param delta 1 if a thread started waiting, or -1 if one stopped.
+     */
+    private void countWaiting(int level, int delta) {
+        long waiting = stats.schedulerLevelWaiting[level] += delta;
+
+        stats.schedulerLevelWaitingTicks[level] -=
+            delta * Machine.timer().getTime();
+        if (waiting > stats.schedulerLevelPeakWaiting[level])
+            stats.schedulerLevelPeakWaiting[level] = waiting;
+    }
+
+    /**
+     * Check that a thread that computes in short bursts and sleeps briefly
+     * in <tt>Alarm.waitUntil()</tt> between them is still charged for its
+     * time, and moved down a level once it has used up its allotment. Does
+     * nothing unless this is the current scheduler.
+     */
+    public static void selfTest() {
+        if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+            return;
+
+        final MLFQScheduler scheduler =
+            (MLFQScheduler) ThreadedKernel.scheduler;
+        if (scheduler.numLevels < 2)
+            return;
+
+        final long burst = scheduler.quantum / 4;
+        final long[] boost = new long[1];
+
+        KThread thread = new KThread(new Runnable() {
+            public void run() {
+                boost[0] = scheduler.currentBoost();
+
+                for (int i = 0; i < 6; i++) {
+                    long end = Machine.timer().getTime() + burst;
+                    while (Machine.timer().getTime() < end) {
+                        Machine.interrupt().disable();
+                        Machine.interrupt().enable();
+                    }
+
+                    ThreadedKernel.alarm.waitUntil(1);
+                }
+            }
+        }).setName("MLFQ sleeper");
+
+        long startTicks = 0;
+        for (int i = 0; i < scheduler.numLevels; i++)
+            startTicks += scheduler.stats.schedulerLevelTicks[i];
+
+        thread.fork();
+        thread.join();
+
+        long ticks = -startTicks;
+        for (int i = 0; i < scheduler.numLevels; i++)
+            ticks += scheduler.stats.schedulerLevelTicks[i];
+        Lib.assertTrue(ticks >= 6 * burst);
+
+        // unless a boost period ended meanwhile, the thread was moved down
+        boolean intStatus = Machine.interrupt().disable();
+        if (scheduler.currentBoost() == boost[0])
+            Lib.assertTrue(scheduler.getThreadState(thread).level > 0);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list for each level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+        MLFQQueue() {
+            heads = new ThreadState[numLevels];
+            tails = new ThreadState[numLevels];
+        }
+
+        /**
+         * Add a thread to the end of the list for its level. If the thread is
+         * the current thread, it is giving up the processor, so the time it
+         * has run is charged to it first.
+         *
+         * @param thread the thread to append to the queue.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (thread == KThread.currentThread())
+                state.charge();
+            else
+                state.checkBoost();
+
+            checkBoost();
+            state.waitSequence = numWaits++;
+            link(state);
+        }
+
+        /**
+         * Remove the first thread from the highest non-empty level.
+         *
+         * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+         */
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            checkBoost();
+
+            ThreadState state = pickNextThread();
+            if (state == null)
+                return null;
+
+            unlink(state);
+
+            stats.schedulerLevelChoices[state.level]++;
+            state.dispatchTime = Machine.timer().getTime();
+
+            return state.thread;
+        }
+
+        /**
+         * Return the next thread that <tt>nextThread()</tt> would return,
+         * without modifying the state of this queue.
+         *
+         * @return the next thread that <tt>nextThread()</tt> would
+         * return.
+         */
+        protected ThreadState pickNextThread() {
+            if (occupied == 0)
+                return null;
+
+            return heads[Integer.numberOfTrailingZeros(occupied)];
+        }
+
+        /**
+         * The specified thread has received exclusive access, without using
+         * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing needs to
+         * be done.
+         */
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < numLevels; i++) {
+                for (ThreadState s = heads[i]; s != null; s = s.nextWaiter)
+                    System.out.print(s.thread + " ");
+            }
+        }
+
+        private void link(ThreadState state) {
+            int level = state.level;
+
+            state.nextWaiter = null;
+            if (tails[level] == null)
+                heads[level] = state;
+            else
+                tails[level].nextWaiter = state;
+            tails[level] = state;
+            state.waiting = true;
+
+            occupied |= 1 << level;
+            countWaiting(level, 1);
+        }
+
+        private void unlink(ThreadState state) {
+            int level = state.level;
+
+            Lib.assertTrue(heads[level] == state);
+
+            heads[level] = state.nextWaiter;
+            if (heads[level] == null) {
+                tails[level] = null;
+                occupied &= ~(1 << level);
+            }
+            state.nextWaiter = null;
+            state.waiting = false;
+            countWaiting(level, -1);
+        }
+
+        /**
+         * If a boost period has ended since this queue was last used, move
+         * every waiting thread to the highest level, keeping them in the order
+         * in which they started waiting.
+         */
+        private void checkBoost() {
+            long boost = currentBoost();
+            if (boost == lastBoost)
+                return;
+
+            lastBoost = boost;
+
+            if ((occupied & ~1) == 0)
+                return;
+
+            ThreadState[] lists = heads;
+            heads = new ThreadState[numLevels];
+            tails = new ThreadState[numLevels];
+            occupied = 0;
+
+            while (true) {
+                int first = -1;
+                for (int i = 0; i < numLevels; i++) {
+                    if (lists[i] != null && (first == -1 ||
+                        lists[i].waitSequence < lists[first].waitSequence))
+                        first = i;
+                }
+                if (first == -1)
+                    break;
+
+                ThreadState state = lists[first];
+                lists[first] = state.nextWaiter;
+
+                countWaiting(state.level, -1);
+                state.boost(boost);
+                link(state);
+            }
+        }
+
+        private ThreadState[] heads, tails;
+        /**
+         * Bit <i>i</i> is set if some thread is waiting at level <i>i</i>.
+         */
+        private int occupied = 0;
+        private long numWaits = 0;
+        private long lastBoost = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+
+            lastBoost = currentBoost();
+            dispatchTime = Machine.timer().getTime();
+        }
+
+        /**
+         * Charge the associated thread for the time it has run since it was
+         * last chosen or charged, and move it down a level if it has used up
+         * its allotment. Called when the thread gives up the processor, and
+         * must not be called while it is waiting on a queue.
+         */
+        void charge() {
+            checkBoost();
+
+            long now = Machine.timer().getTime();
+            long ran = now - dispatchTime;
+            dispatchTime = now;
+
+            stats.schedulerLevelTicks[level] += ran;
+
+            used += ran;
+            if (used >= allotment(level) && level < numLevels - 1) {
+                level++;
+                used = 0;
+            }
+        }
+
+        /**
+         * Move the associated thread to the highest level if a boost period
+         * has ended since it was last charged. Must not be called while the
+         * thread is waiting on a queue.
+         */
+        void checkBoost() {
+            long boost = currentBoost();
+            if (boost != lastBoost)
+                boost(boost);
+        }
+
+        void boost(long boost) {
+            lastBoost = boost;
+            level = 0;
+            used = 0;
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The level of the associated thread, with 0 the highest.
+         */
+        protected int level = 0;
+
+        /**
+         * The time the associated thread has run at its current level, and
+         * when it was last chosen to run.
+         */
+        private long used = 0;
+        private long dispatchTime;
+        /**
+         * The boost period in which the associated thread's level was last
+         * checked.
+         */
+        private long lastBoost;
+
+        /**
+         * Set while the associated thread is waiting on a queue.
+         */
+        private boolean waiting = false;
+        private ThreadState nextWaiter = null;
+        private long waitSequence;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostPeriod;
+    private Stats stats;
+}
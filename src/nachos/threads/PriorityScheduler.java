@@ -25,6 +25,12 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list per priority and a bitmap of the non-empty
+ * lists, so choosing the next thread takes constant time. Effective priorities
+ * are cached, and are only recomputed along the donation chain when a waiter
+ * joins or leaves a queue, or when a thread's priority changes.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -109,6 +115,23 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
+    /**
+     * The number of distinct priorities.
+     */
+    private static final int numPriorities =
+        priorityMaximum - priorityMinimum + 1;
+
+    /**
+     * Return the highest priority in a bitmap of priorities.
+     *
+     * @param priorities a non-zero bitmap with bit <i>i</i> set for priority
+     *                   <tt>priorityMinimum</tt> + <i>i</i>.
+     * @return the highest priority in the bitmap.
+     */
+    private static int highestPriority(int priorities) {
+        return priorityMinimum + 31 - Integer.numberOfLeadingZeros(priorities);
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -142,8 +165,17 @@ public class PriorityScheduler extends Scheduler {
 
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me
-            return null;
+
+            setOwner(null);
+
+            ThreadState state = pickNextThread();
+            if (state == null)
+                return null;
+
+            remove(state);
+            state.acquire(this);
+
+            return state.thread;
         }
 
         /**
@@ -154,13 +186,136 @@ public class PriorityScheduler extends Scheduler {
          * return.
          */
         protected ThreadState pickNextThread() {
-            // implement me
-            return null;
+            if (occupied == 0)
+                return null;
+
+            return heads[highestPriority(occupied) - priorityMinimum];
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
+
+            for (int i = numPriorities - 1; i >= 0; i--) {
+                for (ThreadState s = heads[i]; s != null; s = s.nextWaiter)
+                    System.out.print(s.thread + " ");
+            }
+        }
+
+        /**
+         * Add a waiting thread to this queue.
+         *
+         * @param state the thread to add.
+         */
+        void add(ThreadState state) {
+            link(state);
+            updateDonation();
+        }
+
+        /**
+         * Remove a waiting thread from this queue.
+         *
+         * @param state the thread to remove.
+         */
+        void remove(ThreadState state) {
+            unlink(state);
+            state.waitingFor = null;
+            updateDonation();
+        }
+
+        /**
+         * Move a waiting thread whose effective priority has changed to the
+         * list for its new priority.
+         *
+         * @param state the thread to move.
+         */
+        void reposition(ThreadState state) {
+            unlink(state);
+            link(state);
+            updateDonation();
+        }
+
+        /**
+         * Add a thread to the list for its effective priority, behind every
+         * thread there that has been waiting longer.
+         */
+        private void link(ThreadState state) {
+            int level = state.effectivePriority - priorityMinimum;
+
+            ThreadState prev = tails[level];
+            while (prev != null && prev.waitSequence > state.waitSequence)
+                prev = prev.prevWaiter;
+
+            ThreadState next = (prev == null) ? heads[level] : prev.nextWaiter;
+
+            state.prevWaiter = prev;
+            state.nextWaiter = next;
+            state.waitLevel = level;
+
+            if (prev == null)
+                heads[level] = state;
+            else
+                prev.nextWaiter = state;
+
+            if (next == null)
+                tails[level] = state;
+            else
+                next.prevWaiter = state;
+
+            occupied |= 1 << level;
+        }
+
+        private void unlink(ThreadState state) {
+            int level = state.waitLevel;
+
+            if (state.prevWaiter == null)
+                heads[level] = state.nextWaiter;
+            else
+                state.prevWaiter.nextWaiter = state.nextWaiter;
+
+            if (state.nextWaiter == null)
+                tails[level] = state.prevWaiter;
+            else
+                state.nextWaiter.prevWaiter = state.prevWaiter;
+
+            state.prevWaiter = state.nextWaiter = null;
+
+            if (heads[level] == null)
+                occupied &= ~(1 << level);
+        }
+
+        /**
+         * Give access to the specified thread, taking this queue's donation
+         * away from the previous owner.
+         *
+         * @param state the new owner, or <tt>null</tt> if no thread has
+         *              access.
+         */
+        void setOwner(ThreadState state) {
+            if (owner != null && donation != -1) {
+                owner.changeDonation(donation, -1);
+                donation = -1;
+            }
+
+            owner = state;
+            updateDonation();
+        }
+
+        /**
+         * Make the priority donated to the owner match the highest effective
+         * priority of the waiting threads. The owner's effective priority is
+         * only recomputed if the donation actually changes.
+         */
+        private void updateDonation() {
+            if (!transferPriority || owner == null)
+                return;
+
+            int newDonation = (occupied == 0) ? -1 : highestPriority(occupied);
+            if (newDonation == donation)
+                return;
+
+            int oldDonation = donation;
+            donation = newDonation;
+            owner.changeDonation(oldDonation, newDonation);
         }
 
         /**
@@ -168,6 +323,30 @@ public class PriorityScheduler extends Scheduler {
          * threads to the owning thread.
          */
         public boolean transferPriority;
+
+        /**
+         * The first and last thread waiting at each priority.
+         */
+        private ThreadState[] heads = new ThreadState[numPriorities];
+        private ThreadState[] tails = new ThreadState[numPriorities];
+        /**
+         * Bit <i>i</i> is set if some thread is waiting at priority
+         * <tt>priorityMinimum</tt> + <i>i</i>.
+         */
+        private int occupied = 0;
+        /**
+         * Incremented for each thread that waits, to keep the threads at each
+         * priority in the order in which they started waiting.
+         */
+        private long numWaits = 0;
+        /**
+         * The thread that currently has access, or <tt>null</tt>.
+         */
+        private ThreadState owner = null;
+        /**
+         * The priority this queue currently donates to its owner, or -1.
+         */
+        private int donation = -1;
     }
 
     /**
@@ -205,8 +384,7 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            // implement me
-            return priority;
+            return effectivePriority;
         }
 
         /**
@@ -220,7 +398,7 @@ public class PriorityScheduler extends Scheduler {
 
             this.priority = priority;
 
-            // implement me
+            updateEffectivePriority();
         }
 
         /**
@@ -235,7 +413,11 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {
-            // implement me
+            Lib.assertTrue(waitingFor == null);
+
+            waitingFor = waitQueue;
+            waitSequence = waitQueue.numWaits++;
+            waitQueue.add(this);
         }
 
         /**
@@ -249,7 +431,52 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            // implement me
+            Lib.assertTrue(waitingFor != waitQueue);
+
+            waitQueue.setOwner(this);
+        }
+
+        /**
+         * Called when a queue owned by the associated thread changes the
+         * priority it donates.
+         *
+         * @param oldPriority the priority donated until now, or -1.
+         * @param newPriority the priority donated from now on, or -1.
+         */
+        void changeDonation(int oldPriority, int newPriority) {
+            if (oldPriority != -1) {
+                int level = oldPriority - priorityMinimum;
+                if (--donations[level] == 0)
+                    donated &= ~(1 << level);
+            }
+
+            if (newPriority != -1) {
+                int level = newPriority - priorityMinimum;
+                if (donations[level]++ == 0)
+                    donated |= 1 << level;
+            }
+
+            updateEffectivePriority();
+        }
+
+        /**
+         * Recompute the effective priority from the priority and the
+         * donations. If it changed and the associated thread is waiting, move
+         * it within its queue, which in turn passes the change on to that
+         * queue's owner.
+         */
+        private void updateEffectivePriority() {
+            int effective = priority;
+            if (donated != 0)
+                effective = Math.max(effective, highestPriority(donated));
+
+            if (effective == effectivePriority)
+                return;
+
+            effectivePriority = effective;
+
+            if (waitingFor != null)
+                waitingFor.reposition(this);
         }
 
         /**
@@ -260,5 +487,34 @@ public class PriorityScheduler extends Scheduler {
          * The priority of the associated thread.
          */
         protected int priority;
+        /**
+         * The maximum of <tt>priority</tt> and the priorities donated to the
+         * associated thread.
+         */
+        protected int effectivePriority;
+
+        /**
+         * The number of queues owned by the associated thread that donate
+         * each priority, and a bitmap of the priorities with a non-zero
+         * count.
+         */
+        private int[] donations = new int[numPriorities];
+        private int donated = 0;
+
+        /**
+         * The queue the associated thread is waiting on, or <tt>null</tt>.
+         */
+        private PriorityQueue waitingFor = null;
+        /**
+         * The neighbours of the associated thread in the list for
+         * <tt>waitLevel</tt>, while it is waiting.
+         */
+        private ThreadState prevWaiter = null, nextWaiter = null;
+        private int waitLevel;
+        /**
+         * When the associated thread started waiting, relative to the other
+         * threads on the same queue.
+         */
+        private long waitSequence;
     }
 }
@@ -0,0 +1,408 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held either by any number of readers at
+ * once, or by a single writer.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait too, and
+ * when a writer releases the lock, it is handed to the next waiting writer
+ * before any waiting readers. When no writer is waiting, all waiting readers
+ * are let in together.
+ *
+ * <p>
+ * Waiting readers and writers are kept on two <tt>ThreadQueue</tt>s that
+ * transfer priority. The waiting threads donate to the writer that holds
+ * the lock, or, while readers hold it, to one of those readers, which
+ * passes the donation on to another reader when it releases the lock.
+ *
+ * <p>
+ * Each reader holding the lock has a <tt>Hold</tt>, linked both into this
+ * lock's list of readers and into the thread's own list of read holds, so a
+ * reader is added and removed in constant time, and checking whether a
+ * thread holds the lock only looks at the few locks that thread has read.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        Lib.assertTrue(writer != thread && findHold(thread) == null);
+
+        if (writer == null && numWaitingWriters == 0) {
+            if (numReaders == 0) {
+                // no thread is waiting, so the queues can be acquired
+                writerQueue.acquire(thread);
+                readerQueue.acquire(thread);
+                writerQueueOwner = readerQueueOwner = thread;
+            }
+            addReader(thread);
+        } else {
+            readerQueue.waitForAccess(thread);
+            KThread.sleep();
+        }
+
+        Lib.assertTrue(findHold(thread) != null);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        removeReader(thread);
+
+        if (numReaders == 0) {
+            if (numWaitingWriters > 0)
+                nextWriter();
+        } else {
+            // keep the donations going to a thread that holds the lock
+            KThread reader = firstReader.thread;
+            if (writerQueueOwner == thread) {
+                handOver(writerQueue, reader);
+                writerQueueOwner = reader;
+            }
+            if (readerQueueOwner == thread) {
+                handOver(readerQueue, reader);
+                readerQueueOwner = reader;
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        Lib.assertTrue(writer != thread && findHold(thread) == null);
+
+        if (writer == null && numReaders == 0) {
+            writerQueue.acquire(thread);
+            readerQueue.acquire(thread);
+            writerQueueOwner = readerQueueOwner = thread;
+            writer = thread;
+        } else {
+            numWaitingWriters++;
+            writerQueue.waitForAccess(thread);
+            KThread.sleep();
+        }
+
+        Lib.assertTrue(writer == thread);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(isWriteHeldByCurrentThread());
+
+        writer = null;
+
+        if (numWaitingWriters > 0) {
+            nextWriter();
+        } else {
+            // each reader gets the queue in turn, and the last one keeps it
+            KThread reader;
+            while ((reader = readerQueue.nextThread()) != null) {
+                addReader(reader);
+                readerQueueOwner = reader;
+                reader.ready();
+            }
+
+            // no writer is waiting, so the queue can be acquired
+            if (numReaders > 0) {
+                writerQueue.acquire(firstReader.thread);
+                writerQueueOwner = firstReader.thread;
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+        return writer == KThread.currentThread();
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+        return findHold(KThread.currentThread()) != null;
+    }
+
+    /**
+     * Hand the lock, which no thread holds, to the next waiting writer.
+     */
+    private void nextWriter() {
+        writer = writerQueue.nextThread();
+        Lib.assertTrue(writer != null);
+        numWaitingWriters--;
+
+        handOver(readerQueue, writer);
+        writerQueueOwner = readerQueueOwner = writer;
+
+        writer.ready();
+    }
+
+    /**
+     * Make the threads waiting on <i>queue</i> donate to <i>thread</i>,
+     * which did not wait on it. <tt>acquire()</tt> may only be called on an
+     * empty queue, so the waiters are taken off first, in the order the
+     * queue gives them up, and put back in the same order afterwards.
+     */
+    private static void handOver(ThreadQueue queue, KThread thread) {
+        KThread first = null, last = null, waiter;
+
+        while ((waiter = queue.nextThread()) != null) {
+            if (last == null)
+                first = waiter;
+            else
+                last.nextWaiter = waiter;
+            last = waiter;
+        }
+
+        queue.acquire(thread);
+
+        while (first != null) {
+            waiter = first;
+            first = waiter.nextWaiter;
+            waiter.nextWaiter = null;
+
+            queue.waitForAccess(waiter);
+        }
+    }
+
+    /**
+     * Return the hold <i>thread</i> has on this lock for reading, or
+     * <tt>null</tt>.
+     */
+    private Hold findHold(KThread thread) {
+        for (Hold hold = thread.readHolds; hold != null; hold = hold.nextHeld) {
+            if (hold.lock == this)
+                return hold;
+        }
+
+        return null;
+    }
+
+    private void addReader(KThread thread) {
+        Hold hold = new Hold(this, thread);
+
+        hold.next = firstReader;
+        if (firstReader != null)
+            firstReader.prev = hold;
+        firstReader = hold;
+
+        hold.nextHeld = thread.readHolds;
+        thread.readHolds = hold;
+
+        numReaders++;
+    }
+
+    private void removeReader(KThread thread) {
+        Hold prevHeld = null, hold = thread.readHolds;
+        while (hold != null && hold.lock != this) {
+            prevHeld = hold;
+            hold = hold.nextHeld;
+        }
+
+        Lib.assertTrue(hold != null);
+
+        if (prevHeld == null)
+            thread.readHolds = hold.nextHeld;
+        else
+            prevHeld.nextHeld = hold.nextHeld;
+
+        if (hold.prev == null)
+            firstReader = hold.next;
+        else
+            hold.prev.next = hold.next;
+        if (hold.next != null)
+            hold.next.prev = hold.prev;
+
+        numReaders--;
+    }
+
+    /**
+     * One thread's hold on a lock for reading.
+     */
+    static class Hold {
+        Hold(ReadWriteLock lock, KThread thread) {
+            this.lock = lock;
+            this.thread = thread;
+        }
+
+        final ReadWriteLock lock;
+        final KThread thread;
+        /**
+         * The neighbouring readers of the same lock.
+         */
+        private Hold prev = null, next = null;
+        /**
+         * The next lock the same thread holds for reading.
+         */
+        Hold nextHeld = null;
+    }
+
+    private KThread writer = null;
+    private Hold firstReader = null;
+    private int numReaders = 0;
+    private int numWaitingWriters = 0;
+
+    private ThreadQueue writerQueue =
+        ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue readerQueue =
+        ThreadedKernel.scheduler.newThreadQueue(true);
+    /**
+     * The threads the two queues were last handed to, which receive the
+     * donations of the threads waiting on them.
+     */
+    private KThread writerQueueOwner = null, readerQueueOwner = null;
+
+    /**
+     * Check that readers share this lock and writers exclude everyone, with
+     * a mix of readers and writers that sleep while holding it.
+     */
+    public static void selfTest() {
+        final ReadWriteLock lock = new ReadWriteLock();
+        final int[] state = {0, 0, 0};    // readers, writers, most readers
+
+        KThread[] threads = new KThread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean writes = (i % 4 == 0);
+
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        if (writes) {
+                            lock.acquireWrite();
+                            Lib.assertTrue(state[0] == 0 && state[1] == 0);
+                            state[1]++;
+                            ThreadedKernel.alarm.waitUntil(100);
+                            state[1]--;
+                            lock.releaseWrite();
+                        } else {
+                            lock.acquireRead();
+                            Lib.assertTrue(state[1] == 0);
+                            state[0]++;
+                            state[2] = Math.max(state[2], state[0]);
+                            ThreadedKernel.alarm.waitUntil(100);
+                            state[0]--;
+                            lock.releaseRead();
+                        }
+                    }
+                }
+            }).setName((writes ? "writer " : "reader ") + i);
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        Lib.assertTrue(state[2] > 1);
+    }
+
+    /**
+     * Compare this lock with a plain <tt>Lock</tt> on read-mostly workloads:
+     * one where holders sleep in the critical section, as when reading a
+     * table entry leads to disk I/O, and one that only computes.
+     */
+    public static void benchmark() {
+        benchmark(8, 1, 100, 200, true);
+        benchmark(8, 1, 100, 200, false);
+        benchmark(8, 1, 200, 0, true);
+        benchmark(8, 1, 200, 0, false);
+    }
+
+    private static void benchmark(int numReaders, int numWriters,
+                                  final int rounds, final long sleepTicks,
+                                  final boolean readWrite) {
+        final ReadWriteLock rwLock = new ReadWriteLock();
+        final Lock lock = new Lock();
+
+        long dispatches = KThread.numDispatches;
+        long ticks = Machine.timer().getTime();
+        long start = System.nanoTime();
+
+        KThread[] threads = new KThread[numReaders + numWriters];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean writes = (i >= numReaders);
+
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < rounds; j++) {
+                        if (!readWrite)
+                            lock.acquire();
+                        else if (writes)
+                            rwLock.acquireWrite();
+                        else
+                            rwLock.acquireRead();
+
+                        if (sleepTicks > 0) {
+                            ThreadedKernel.alarm.waitUntil(sleepTicks);
+                        } else {
+                            Machine.interrupt().disable();
+                            Machine.interrupt().enable();
+                        }
+
+                        if (!readWrite)
+                            lock.release();
+                        else if (writes)
+                            rwLock.releaseWrite();
+                        else
+                            rwLock.releaseRead();
+
+                        // work outside the critical section
+                        Machine.interrupt().disable();
+                        Machine.interrupt().enable();
+                    }
+                }
+            }).setName("benchmark " + (writes ? "writer " : "reader ") + i);
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        System.out.println((readWrite ? "ReadWriteLock" : "Lock") + ": " +
+            numReaders + " readers, " + numWriters + " writers, " + rounds +
+            " rounds, " + (sleepTicks > 0 ? "sleeping" : "computing") +
+            ": " + (Machine.timer().getTime() - ticks) + " ticks, " +
+            (KThread.numDispatches - dispatches) + " dispatches, " +
+            (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
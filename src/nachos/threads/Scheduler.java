@@ -12,6 +12,7 @@ public abstract class Scheduler {
      * Allocate a new scheduler.
      */
     public Scheduler() {
+        quantum = Config.getInteger("Scheduler.quantum", 0);
     }
 
     /**
@@ -154,4 +155,51 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Return the number of ticks the specified thread may run before the
+     * timer interrupt preempts it in favour of another ready thread. Must be
+     * called with interrupts disabled.
+     *
+     * <p>
+     * By default this is the value of <tt>Scheduler.quantum</tt>, or 0 if it
+     * is not set, so that a thread is preempted at every timer interrupt.
+     * Schedulers that choose threads by priority or deadline rely on this to
+     * run a thread that has just become ready promptly, so a larger quantum
+     * delays that by up to the quantum.
+     *
+     * @param thread the running thread.
+     * @return the length of the thread's time slice.
+     */
+    public long getQuantum(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        return quantum;
+    }
+
+    /**
+     * Called with interrupts disabled when the current thread finishes, so
+     * that the scheduler can release whatever it set aside for the thread.
+     * The thread never runs again. By default nothing is done.
+     *
+     * @param thread the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called with interrupts disabled when the current thread gives up the
+     * processor, whether it yielded, blocked or finished, just before the
+     * next thread is chosen. A scheduler that charges threads for the time
+     * they run can charge it here, including a thread that blocked without
+     * waiting on a <tt>ThreadQueue</tt>, as in <tt>Alarm.waitUntil()</tt>.
+     * The idle thread is not reported. By default nothing is done.
+     *
+     * @param thread the thread that is giving up the processor.
+     */
+    public void threadStopped(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    private long quantum;
 }
@@ -14,6 +14,9 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> take and add several units at once.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -35,13 +38,38 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+        P(1);
+    }
+
+    /**
+     * Atomically wait until <i>n</i> units can be taken from this semaphore,
+     * and take them. Waiting threads are served in the order chosen by the
+     * scheduler: the first waiter collects units as they are released until
+     * it has all it asked for, and threads behind it keep waiting, so a large
+     * request is not starved by smaller ones.
+     *
+     * @param n the number of units to take.
+     */
+    public void P(int n) {
+        Lib.assertTrue(n > 0);
+
         boolean intStatus = Machine.interrupt().disable();
 
-        if (value == 0) {
-            waitQueue.waitForAccess(KThread.currentThread());
+        KThread thread = KThread.currentThread();
+
+        // the value is only non-zero while no thread is waiting
+        if (value >= n) {
+            value -= n;
+        } else if (value > 0) {
+            thread.waitUnits = n;
+            collector = thread;
+            collected = value;
+            value = 0;
             KThread.sleep();
         } else {
-            value--;
+            thread.waitUnits = n;
+            waitQueue.waitForAccess(thread);
+            KThread.sleep();
         }
 
         Machine.interrupt().restore(intStatus);
@@ -52,13 +80,39 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+        V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> units to this semaphore, and wake exactly those
+     * threads sleeping in <tt>P()</tt> whose requests can now be met.
+     *
+     * @param n the number of units to add.
+     */
+    public void V(int n) {
+        Lib.assertTrue(n > 0);
+
         boolean intStatus = Machine.interrupt().disable();
 
-        KThread thread = waitQueue.nextThread();
-        if (thread != null) {
-            thread.ready();
-        } else {
-            value++;
+        while (n > 0) {
+            if (collector == null) {
+                collector = waitQueue.nextThread();
+                collected = 0;
+
+                if (collector == null) {
+                    value += n;
+                    break;
+                }
+            }
+
+            int amount = Math.min(n, collector.waitUnits - collected);
+            collected += amount;
+            n -= amount;
+
+            if (collected == collector.waitUnits) {
+                collector.ready();
+                collector = null;
+            }
         }
 
         Machine.interrupt().restore(intStatus);
@@ -94,9 +148,47 @@ public class Semaphore {
             ping.V();
             pong.P();
         }
+
+        // a large request that arrives first is served before smaller ones
+        final Semaphore units = new Semaphore(2);
+        final int[] done = {0};
+        int[] requests = {5, 1, 2};
+
+        KThread[] threads = new KThread[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            final int n = requests[i];
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    units.P(n);
+                    done[0]++;
+                }
+            }).setName("units " + i);
+            threads[i].fork();
+
+            // make sure the large request arrives first
+            while (i == 0 && units.collector == null)
+                KThread.yield();
+        }
+
+        // the first request holds on to the units until it has all 5
+        units.V(1);
+        KThread.yield();
+        Lib.assertTrue(done[0] == 0);
+
+        units.V(5);
+        for (int i = 0; i < requests.length; i++)
+            threads[i].join();
+
+        Lib.assertTrue(done[0] == requests.length);
     }
 
     private int value;
+    /**
+     * The waiting thread that is collecting units, if any, and how many it
+     * has collected so far. It is no longer on <tt>waitQueue</tt>.
+     */
+    private KThread collector = null;
+    private int collected;
     private ThreadQueue waitQueue =
         ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,554 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of the processor in
+ * proportion to its tickets. Instead of holding a random lottery, it gives
+ * each thread a <i>stride</i> inversely proportional to its tickets, and a
+ * <i>pass</i> that advances by the stride each time the thread is chosen. The
+ * thread with the lowest pass is always chosen next, so the shares are met
+ * deterministically, with an error that does not grow over time.
+ *
+ * <p>
+ * Each queue also keeps a global pass, which advances as if a single thread
+ * held all the waiting tickets. A thread that leaves a queue remembers how far
+ * its pass was from the global pass, and rejoins at the same distance, so it
+ * neither gains nor loses credit while it is away.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins exactly as with a
+ * <tt>LotteryScheduler</tt>: a thread's effective tickets are its own tickets
+ * plus those of all the threads waiting for it.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should
+     *                         transfer tickets from waiting threads
+     *                         to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getStrideState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getStrideState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+            priority <= priorityMaximum);
+
+        getStrideState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread holding a single ticket. Passes may wrap
+     * around, so they are only ever compared by their difference.
+     */
+    private static final long stride1 = 1L << 50;
+
+    /**
+     * Return the stride corresponding to a number of tickets.
+     *
+     * @param tickets a positive number of tickets.
+     * @return the stride for <i>tickets</i>, at least 1.
+     */
+    private static long stride(long tickets) {
+        return Math.max(1, stride1 / tickets);
+    }
+
+    /**
+     * Return the stride state of the specified thread.
+     *
+     * @param thread the thread whose stride state to return.
+     * @return the stride state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new StrideState(thread);
+
+        return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a min-heap
+     * ordered by pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+        StrideQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getStrideState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getStrideState(thread).acquire(this);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            setOwner(null);
+
+            StrideState state = pickNextThread();
+            if (state == null)
+                return null;
+
+            globalPass += stride(totalTickets);
+            state.pass += stride(state.effectiveTickets);
+
+            remove(state);
+            state.acquire(this);
+
+            return state.thread;
+        }
+
+        /**
+         * Return the next thread that <tt>nextThread()</tt> would return,
+         * without modifying the state of this queue.
+         *
+         * @return the waiting thread with the lowest pass.
+         */
+        protected StrideState pickNextThread() {
+            return (size == 0) ? null : heap[0];
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i].thread + " ");
+        }
+
+        /**
+         * Add a waiting thread to this queue, at the same distance from the
+         * global pass as when it last left.
+         *
+         * @param state the thread to add.
+         */
+        void add(StrideState state) {
+            state.pass = globalPass + state.remain;
+            state.waitSequence = numWaits++;
+
+            if (size == heap.length) {
+                StrideState[] newHeap = new StrideState[size * 2];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+
+            heap[size] = state;
+            state.heapIndex = size++;
+            siftUp(state.heapIndex);
+
+            changeTotal(state.effectiveTickets);
+        }
+
+        /**
+         * Remove a waiting thread from this queue, remembering its distance
+         * from the global pass.
+         *
+         * @param state the thread to remove.
+         */
+        void remove(StrideState state) {
+            int i = state.heapIndex;
+
+            size--;
+            if (i != size) {
+                StrideState moved = heap[size];
+                set(i, moved);
+                siftUp(i);
+                siftDown(moved.heapIndex);
+            }
+            heap[size] = null;
+
+            state.remain = state.pass - globalPass;
+            state.waitingFor = null;
+
+            changeTotal(-state.effectiveTickets);
+        }
+
+        /**
+         * Called when the effective tickets of a waiting thread change. The
+         * distance of its pass from the global pass is scaled by the change in
+         * its stride.
+         *
+         * @param state      the waiting thread.
+         * @param oldTickets its previous effective tickets.
+         */
+        void changeTickets(StrideState state, long oldTickets) {
+            long remain = state.pass - globalPass;
+            remain = (long) ((double) remain *
+                stride(state.effectiveTickets) / stride(oldTickets));
+            state.pass = globalPass + remain;
+
+            siftUp(state.heapIndex);
+            siftDown(state.heapIndex);
+
+            changeTotal(state.effectiveTickets - oldTickets);
+        }
+
+        /**
+         * Give access to the specified thread, moving this queue's donation
+         * from the previous owner to it.
+         *
+         * @param state the new owner, or <tt>null</tt> if no thread has
+         *              access.
+         */
+        void setOwner(StrideState state) {
+            if (transferPriority && owner != null)
+                owner.changeEffectiveTickets(-totalTickets);
+
+            owner = state;
+
+            if (transferPriority && owner != null)
+                owner.changeEffectiveTickets(totalTickets);
+        }
+
+        private void changeTotal(long delta) {
+            totalTickets += delta;
+
+            if (transferPriority && owner != null)
+                owner.changeEffectiveTickets(delta);
+        }
+
+        private boolean before(StrideState a, StrideState b) {
+            long difference = a.pass - b.pass;
+            if (difference != 0)
+                return difference < 0;
+
+            return a.waitSequence < b.waitSequence;
+        }
+
+        private void set(int i, StrideState state) {
+            heap[i] = state;
+            state.heapIndex = i;
+        }
+
+        private void siftUp(int i) {
+            StrideState state = heap[i];
+
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(state, heap[parent]))
+                    break;
+
+                set(i, heap[parent]);
+                i = parent;
+            }
+
+            set(i, state);
+        }
+
+        private void siftDown(int i) {
+            StrideState state = heap[i];
+
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+
+                if (!before(heap[child], state))
+                    break;
+
+                set(i, heap[child]);
+                i = child;
+            }
+
+            set(i, state);
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The waiting threads, as a binary min-heap ordered by pass and then
+         * by when they started waiting.
+         */
+        private StrideState[] heap = new StrideState[4];
+        private int size = 0;
+        private long numWaits = 0;
+
+        /**
+         * The pass of an imaginary thread holding all the waiting tickets.
+         */
+        private long globalPass = 0;
+        /**
+         * The effective tickets of all waiting threads, which is also the
+         * number donated to the owner if this queue transfers priority.
+         */
+        private long totalTickets = 0;
+        /**
+         * The thread that currently has access, or <tt>null</tt>.
+         */
+        private StrideState owner = null;
+    }
+
+    /**
+     * The stride scheduling state of a thread.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class StrideState {
+        /**
+         * Allocate a new <tt>StrideState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public StrideState(KThread thread) {
+            this.thread = thread;
+
+            tickets = priorityDefault;
+            effectiveTickets = tickets;
+            remain = stride(effectiveTickets);
+        }
+
+        /**
+         * Return the number of tickets the associated thread holds.
+         *
+         * @return the tickets of the associated thread.
+         */
+        public int getPriority() {
+            return tickets;
+        }
+
+        /**
+         * Return the number of tickets of the associated thread, including
+         * donated tickets, limited to <tt>Integer.MAX_VALUE</tt>.
+         *
+         * @return the effective tickets of the associated thread.
+         */
+        public int getEffectivePriority() {
+            return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Set the number of tickets of the associated thread.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setPriority(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+
+            changeEffectiveTickets(delta);
+        }
+
+        /**
+         * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+         * the associated thread) is invoked on the specified queue.
+         *
+         * @param waitQueue the queue that the associated thread is
+         *                  now waiting on.
+         */
+        public void waitForAccess(StrideQueue waitQueue) {
+            Lib.assertTrue(waitingFor == null);
+
+            waitingFor = waitQueue;
+            waitQueue.add(this);
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>.
+         *
+         * @param waitQueue the queue the associated thread now owns.
+         */
+        public void acquire(StrideQueue waitQueue) {
+            Lib.assertTrue(waitingFor != waitQueue);
+
+            waitQueue.setOwner(this);
+        }
+
+        /**
+         * Add to the effective tickets of the associated thread, and pass the
+         * change on to the queue it is waiting on.
+         *
+         * @param delta the change in effective tickets.
+         */
+        void changeEffectiveTickets(long delta) {
+            if (delta == 0)
+                return;
+
+            long oldTickets = effectiveTickets;
+            effectiveTickets += delta;
+
+            if (waitingFor != null) {
+                waitingFor.changeTickets(this, oldTickets);
+            } else {
+                remain = (long) ((double) remain * stride(effectiveTickets) /
+                    stride(oldTickets));
+            }
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected int tickets;
+        /**
+         * <tt>tickets</tt> plus all the tickets donated to the associated
+         * thread.
+         */
+        protected long effectiveTickets;
+
+        /**
+         * The pass of the associated thread while it is waiting, and its
+         * distance from the global pass while it is not.
+         */
+        private long pass, remain;
+        private long waitSequence;
+
+        /**
+         * The queue the associated thread is waiting on, or <tt>null</tt>, and
+         * its position in that queue's heap.
+         */
+        private StrideQueue waitingFor = null;
+        private int heapIndex;
+    }
+
+    /**
+     * Compare the throughput and fairness of the round-robin, lottery and
+     * stride schedulers on the same workload: threads holding 1, 2, 3 and 4
+     * tickets repeatedly taking turns on a queue.
+     */
+    public static void selfTest() {
+        fairnessTest("round robin", new RoundRobinScheduler());
+        fairnessTest("lottery", new LotteryScheduler());
+        fairnessTest("stride", new StrideScheduler());
+    }
+
+    private static void fairnessTest(String name, Scheduler scheduler) {
+        final int[] tickets = {1, 2, 3, 4};
+        final int rounds = 100000;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+        KThread[] threads = new KThread[tickets.length];
+        long totalTickets = 0;
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread().setName(name + " " + tickets[i]);
+            scheduler.setPriority(threads[i], tickets[i]);
+            queue.waitForAccess(threads[i]);
+            totalTickets += tickets[i];
+        }
+
+        long[] runs = new long[threads.length];
+        double maxError = 0;
+        long start = System.nanoTime();
+
+        for (int round = 1; round <= rounds; round++) {
+            KThread thread = queue.nextThread();
+
+            int i = 0;
+            while (threads[i] != thread)
+                i++;
+            runs[i]++;
+
+            for (int j = 0; j < threads.length; j++) {
+                double ideal = (double) round * tickets[j] / totalTickets;
+                maxError = Math.max(maxError, Math.abs(runs[j] - ideal));
+            }
+
+            queue.waitForAccess(thread);
+        }
+
+        long nanos = System.nanoTime() - start;
+
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println(name + ": " + rounds + " choices in " +
+            nanos / 1000000 + " ms, maximum error " +
+            Math.round(maxError * 10) / 10.0 + " turns");
+        for (int i = 0; i < threads.length; i++) {
+            System.out.println("\t" + tickets[i] + " tickets: " + runs[i] +
+                " turns, expected " + rounds * tickets[i] / totalTickets);
+        }
+    }
+}
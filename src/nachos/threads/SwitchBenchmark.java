@@ -0,0 +1,206 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures how fast the TCB backend switches between Nachos threads. Rings
+ * of threads pass control around with <tt>KThread.yield()</tt>, and then
+ * with <tt>Semaphore</tt> P/V, and the number of real-time switches per
+ * second and a histogram of the time each switch took are printed. Also
+ * counts how often the timer interrupt preempts compute-bound threads.
+ *
+ * <p>
+ * Compare TCB backends by running it under different
+ * <tt>TCB.virtualThreads</tt> and <tt>TCB.spinCount</tt> settings.
+ */
+public class SwitchBenchmark {
+    private SwitchBenchmark() {
+    }
+
+    /**
+     * Run the yield and semaphore benchmarks with the given ring size.
+     *
+     * @param numThreads the number of threads passing control around.
+     * @param rounds     the number of times control goes around the ring.
+     */
+    public static void run(int numThreads, int rounds) {
+        Lib.assertTrue(numThreads > 0 && rounds > 0);
+
+        Histogram histogram = new Histogram();
+        KThread[] threads = new KThread[numThreads];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread(new YieldTest(numThreads, rounds,
+                histogram)).setName("yield " + i);
+            threads[i].fork();
+        }
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        report("yield", numThreads, rounds, System.nanoTime() - start,
+            histogram);
+
+        histogram = new Histogram();
+        Semaphore[] tokens = new Semaphore[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            tokens[i] = new Semaphore(0);
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread(new SemaphoreTest(tokens[i],
+                tokens[(i + 1) % numThreads], numThreads, rounds,
+                histogram)).setName("semaphore " + i);
+            threads[i].fork();
+        }
+        tokens[0].V();
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        report("semaphore", numThreads, rounds, System.nanoTime() - start,
+            histogram);
+    }
+
+    /**
+     * Run compute-bound threads for the given amount of simulated time, and
+     * print how many timer interrupts there were and how many of them led to
+     * a context switch. Before the timer interrupt handler checked for other
+     * ready threads and the quantum, every interrupt made the current thread
+     * yield.
+     *
+     * @param numThreads the number of compute-bound threads.
+     * @param ticks      how long each thread runs, in ticks.
+     */
+    public static void preemption(int numThreads, final long ticks) {
+        Lib.assertTrue(numThreads > 0 && ticks > 0);
+
+        Alarm alarm = ThreadedKernel.alarm;
+        long interrupts = alarm.numInterrupts;
+        long preemptions = alarm.numPreemptions;
+        long dispatches = KThread.numDispatches;
+
+        KThread[] threads = new KThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    long end = Machine.timer().getTime() + ticks;
+                    while (Machine.timer().getTime() < end) {
+                        Machine.interrupt().disable();
+                        Machine.interrupt().enable();
+                    }
+                }
+            }).setName("compute " + i);
+            threads[i].fork();
+        }
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        System.out.println("preemption: " + numThreads + " threads, " +
+            (alarm.numInterrupts - interrupts) + " timer interrupts, " +
+            (alarm.numPreemptions - preemptions) + " preemptions, " +
+            (KThread.numDispatches - dispatches) + " dispatches");
+    }
+
+    /**
+     * Run the benchmarks with a pair of threads and with a larger ring, and
+     * the preemption benchmark with one and two compute-bound threads.
+     */
+    public static void selfTest() {
+        run(2, 10000);
+        run(16, 1000);
+
+        preemption(1, 500000);
+        preemption(2, 500000);
+    }
+
+    private static void report(String name, int numThreads, int rounds,
+                               long nanos, Histogram histogram) {
+        long switches = (long) numThreads * rounds;
+
+        System.out.println(name + ": " + numThreads + " threads, " +
+            switches + " switches in " + nanos / 1000000 + " ms, " +
+            (nanos > 0 ? switches * 1000000000L / nanos : 0) +
+            " switches/sec");
+        histogram.print();
+    }
+
+    private static class YieldTest implements Runnable {
+        YieldTest(int numThreads, int rounds, Histogram histogram) {
+            this.numThreads = numThreads;
+            this.rounds = rounds;
+            this.histogram = histogram;
+        }
+
+        public void run() {
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                KThread.yield();
+                histogram.add((System.nanoTime() - start) / numThreads);
+            }
+        }
+
+        private int numThreads, rounds;
+        private Histogram histogram;
+    }
+
+    private static class SemaphoreTest implements Runnable {
+        SemaphoreTest(Semaphore mine, Semaphore next, int numThreads,
+                      int rounds, Histogram histogram) {
+            this.mine = mine;
+            this.next = next;
+            this.numThreads = numThreads;
+            this.rounds = rounds;
+            this.histogram = histogram;
+        }
+
+        public void run() {
+            mine.P();
+            for (int i = 1; i < rounds; i++) {
+                long start = System.nanoTime();
+                next.V();
+                mine.P();
+                histogram.add((System.nanoTime() - start) / numThreads);
+            }
+            next.V();
+        }
+
+        private Semaphore mine, next;
+        private int numThreads, rounds;
+        private Histogram histogram;
+    }
+
+    /**
+     * Counts samples in power-of-two nanosecond buckets.
+     */
+    private static class Histogram {
+        void add(long nanos) {
+            buckets[nanos > 0 ? 63 - Long.numberOfLeadingZeros(nanos) : 0]++;
+        }
+
+        void print() {
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++)
+                total += buckets[i];
+
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] == 0)
+                    continue;
+
+                System.out.println("\t< " + formatNanos(2L << i) + ": " +
+                    buckets[i] + " (" + buckets[i] * 100 / total + "%)");
+            }
+        }
+
+        private static String formatNanos(long nanos) {
+            if (nanos < 1000)
+                return nanos + "ns";
+            else if (nanos < 1000000)
+                return nanos / 1000 + "us";
+            else
+                return nanos / 1000000 + "ms";
+        }
+
+        private long[] buckets = new long[64];
+    }
+}
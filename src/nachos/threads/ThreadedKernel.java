@@ -43,18 +43,32 @@ public class ThreadedKernel extends Kernel {
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
      * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * tests here. If <tt>ThreadedKernel.benchmark</tt> is set, also run the
+     * context switch benchmark, the scheduler fairness comparison, the
+     * channel and read-write lock benchmarks, and, under an
+     * <tt>EDFScheduler</tt> or <tt>MLFQScheduler</tt>, the real-time
+     * deadline test or the sleeping thread test.
      */
     public void selfTest() {
         //        KThread.selfTest();
         //        Condition2.selfTest();
         Communicator.selfTest();
+        //        Channel.selfTest();
         //        Alarm.selfTest();
         //        Semaphore.selfTest();
+        //        ReadWriteLock.selfTest();
         //        SynchList.selfTest();
         //        if (Machine.bank() != null) {
         //            ElevatorBank.selfTest();
         //        }
+        if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+            SwitchBenchmark.selfTest();
+            StrideScheduler.selfTest();
+            EDFScheduler.selfTest();
+            MLFQScheduler.selfTest();
+            Channel.benchmark();
+            ReadWriteLock.benchmark();
+        }
     }
 
     /**
@@ -92,4 +106,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
 }
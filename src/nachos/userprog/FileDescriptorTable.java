@@ -0,0 +1,194 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A process's table of file descriptors, each of which refers to an
+ * <tt>OpenFile</tt>. A new file always gets the lowest free descriptor, and
+ * the table grows by doubling when every descriptor is in use.
+ *
+ * <p>
+ * The free descriptors are kept in a bitmap, with a second bitmap marking
+ * the words of the first that have a free descriptor in them, so finding
+ * the lowest free descriptor takes a couple of word operations for tables of
+ * up to 4096 descriptors.
+ */
+public class FileDescriptorTable {
+    /**
+     * Allocate a new, empty descriptor table.
+     *
+     * @param maxDescriptors the most descriptors the table may grow to.
+     */
+    public FileDescriptorTable(int maxDescriptors) {
+        Lib.assertTrue(maxDescriptors > 0);
+
+        this.maxDescriptors = maxDescriptors;
+
+        files = new OpenFile[0];
+        free = new long[0];
+        summary = new long[0];
+        grow(Math.min(initialSize, maxDescriptors));
+    }
+
+    /**
+     * Add a file to this table, at the lowest free descriptor.
+     *
+     * @param file the file to add.
+     * @return the descriptor, or -1 if the table is full.
+     */
+    public int add(OpenFile file) {
+        Lib.assertTrue(file != null);
+
+        int fd = lowestFree();
+        if (fd == -1) {
+            if (files.length == maxDescriptors)
+                return -1;
+
+            fd = files.length;
+            grow(Math.min(2 * files.length, maxDescriptors));
+        }
+
+        files[fd] = file;
+        clearFree(fd);
+        numOpen++;
+
+        return fd;
+    }
+
+    /**
+     * Return the file a descriptor refers to.
+     *
+     * @param fd the descriptor.
+     * @return the file, or <tt>null</tt> if the descriptor is not in use.
+     */
+    public OpenFile get(int fd) {
+        if (fd < 0 || fd >= files.length)
+            return null;
+
+        return files[fd];
+    }
+
+    /**
+     * Remove a file from this table, freeing its descriptor. The file is not
+     * closed.
+     *
+     * @param fd the descriptor.
+     * @return the file, or <tt>null</tt> if the descriptor was not in use.
+     */
+    public OpenFile remove(int fd) {
+        OpenFile file = get(fd);
+        if (file == null)
+            return null;
+
+        files[fd] = null;
+        setFree(fd);
+        numOpen--;
+
+        return file;
+    }
+
+    /**
+     * Close every file in this table, and free all the descriptors.
+     */
+    public void closeAll() {
+        for (int fd = 0; fd < files.length && numOpen > 0; fd++) {
+            OpenFile file = remove(fd);
+            if (file != null)
+                file.close();
+        }
+    }
+
+    /**
+     * Return the number of descriptors in use.
+     *
+     * @return the number of open descriptors.
+     */
+    public int getNumOpen() {
+        return numOpen;
+    }
+
+    private int lowestFree() {
+        for (int i = 0; i < summary.length; i++) {
+            if (summary[i] != 0) {
+                int word = (i << 6) + Long.numberOfTrailingZeros(summary[i]);
+                return (word << 6) + Long.numberOfTrailingZeros(free[word]);
+            }
+        }
+
+        return -1;
+    }
+
+    private void setFree(int fd) {
+        int word = fd >>> 6;
+
+        free[word] |= 1L << fd;
+        summary[word >>> 6] |= 1L << word;
+    }
+
+    private void clearFree(int fd) {
+        int word = fd >>> 6;
+
+        free[word] &= ~(1L << fd);
+        if (free[word] == 0)
+            summary[word >>> 6] &= ~(1L << word);
+    }
+
+    /**
+     * Grow this table to the specified size, marking the new descriptors
+     * free.
+     */
+    private void grow(int size) {
+        int oldSize = files.length;
+
+        files = Arrays.copyOf(files, size);
+        free = Arrays.copyOf(free, (size + 63) >>> 6);
+        summary = Arrays.copyOf(summary, (free.length + 63) >>> 6);
+
+        for (int fd = oldSize; fd < size; fd++)
+            setFree(fd);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        FileDescriptorTable table = new FileDescriptorTable(200);
+        OpenFile file = new OpenFile();
+
+        for (int fd = 0; fd < 200; fd++)
+            Lib.assertTrue(table.add(file) == fd);
+        Lib.assertTrue(table.add(file) == -1);
+
+        Lib.assertTrue(table.remove(130) == file);
+        Lib.assertTrue(table.remove(130) == null);
+        Lib.assertTrue(table.remove(70) == file);
+        Lib.assertTrue(table.get(70) == null && table.get(200) == null);
+
+        // the lowest free descriptor is reused first
+        Lib.assertTrue(table.add(file) == 70);
+        Lib.assertTrue(table.add(file) == 130);
+        Lib.assertTrue(table.getNumOpen() == 200);
+
+        table.closeAll();
+        Lib.assertTrue(table.getNumOpen() == 0);
+        Lib.assertTrue(table.add(file) == 0);
+    }
+
+    private int maxDescriptors;
+    private int numOpen = 0;
+
+    private OpenFile[] files;
+    /**
+     * One bit per descriptor, set if the descriptor is free.
+     */
+    private long[] free;
+    /**
+     * One bit per word of <tt>free</tt>, set if that word has a free
+     * descriptor.
+     */
+    private long[] summary;
+
+    private static final int initialSize = 16;
+}
@@ -0,0 +1,421 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which frames of physical memory are free, in a bitmap with
+ * one bit per frame. Free frames are found a word of the bitmap at a time,
+ * starting from a cursor that moves past each allocation, so successive
+ * allocations do not rescan the frames that were just handed out.
+ *
+ * <p>
+ * Frames can be allocated and freed one at a time or in batches. A batch is
+ * placed in a single contiguous run of frames if one is free, and scattered
+ * over whatever frames are free otherwise.
+ *
+ * <p>
+ * A <tt>FrameAllocator</tt> is not synchronized; the caller must make sure
+ * only one thread uses it at a time.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param numFrames the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+        Lib.assertTrue(numFrames >= 0);
+
+        this.numFrames = numFrames;
+        numFree = numFrames;
+
+        free = new long[(numFrames + 63) >>> 6];
+        setRange(0, numFrames);
+    }
+
+    /**
+     * Allocate a single frame.
+     *
+     * @return the number of the frame, or -1 if every frame is in use.
+     */
+    public int allocate() {
+        if (numFree == 0)
+            return -1;
+
+        int frame = nextFree(cursor);
+        if (frame == -1)
+            frame = nextFree(0);
+
+        free[frame >>> 6] &= ~(1L << frame);
+        numFree--;
+        cursor = frame + 1;
+
+        return frame;
+    }
+
+    /**
+     * Allocate <i>n</i> frames and store their numbers in an array, starting
+     * at <i>offset</i>. The frames are contiguous and in order if there is a
+     * long enough run of free frames. Either all the frames are allocated, or
+     * none are.
+     *
+     * @param frames the array to store the frame numbers in.
+     * @param offset the index at which to store the first frame number.
+     * @param n      the number of frames to allocate.
+     * @return <tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(int[] frames, int offset, int n) {
+        Lib.assertTrue(offset >= 0 && n >= 0 && offset + n <= frames.length);
+
+        if (n > numFree)
+            return false;
+
+        int first = allocateContiguous(n);
+        if (first != -1) {
+            for (int i = 0; i < n; i++)
+                frames[offset + i] = first + i;
+            return true;
+        }
+
+        // no run is long enough, so take free frames as they come
+        int start = (cursor < numFrames) ? cursor : 0;
+        int word = start >>> 6;
+        long bits = free[word] & (-1L << start);
+
+        for (int i = 0; i < n; ) {
+            if (bits == 0) {
+                word = (word + 1) % free.length;
+                bits = free[word];
+                continue;
+            }
+
+            int frame = (word << 6) + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            free[word] &= ~(1L << frame);
+            frames[offset + i++] = frame;
+            cursor = frame + 1;
+        }
+
+        numFree -= n;
+        return true;
+    }
+
+    /**
+     * Allocate a contiguous run of <i>n</i> frames.
+     *
+     * @param n the number of frames to allocate.
+     * @return the number of the first frame of the run, or -1 if no run of
+     * <i>n</i> free frames exists.
+     */
+    public int allocateContiguous(int n) {
+        Lib.assertTrue(n >= 0);
+
+        if (n > numFree)
+            return -1;
+        if (n == 0)
+            return 0;
+
+        int first = findRun(cursor, numFrames, n);
+        if (first == -1)
+            first = findRun(0, cursor, n);
+        if (first == -1)
+            return -1;
+
+        clearRange(first, n);
+        numFree -= n;
+        cursor = first + n;
+
+        return first;
+    }
+
+    /**
+     * Free a single frame, which must be in use.
+     *
+     * @param frame the number of the frame.
+     */
+    public void free(int frame) {
+        free(frame, 1);
+    }
+
+    /**
+     * Free a contiguous run of frames, all of which must be in use.
+     *
+     * @param first the number of the first frame in the run.
+     * @param n     the number of frames in the run.
+     */
+    public void free(int first, int n) {
+        Lib.assertTrue(first >= 0 && n >= 0 && first + n <= numFrames);
+
+        int next = nextFree(first);
+        Lib.assertTrue(next == -1 || next >= first + n);
+
+        setRange(first, n);
+        numFree += n;
+    }
+
+    /**
+     * Free <i>n</i> frames whose numbers are stored in an array, starting at
+     * <i>offset</i>. Every frame must be in use.
+     *
+     * @param frames the array holding the frame numbers.
+     * @param offset the index of the first frame number.
+     * @param n      the number of frames to free.
+     */
+    public void free(int[] frames, int offset, int n) {
+        Lib.assertTrue(offset >= 0 && n >= 0 && offset + n <= frames.length);
+
+        // free runs of consecutive frames together
+        for (int i = offset, end = offset + n; i < end; ) {
+            int j = i + 1;
+            while (j < end && frames[j] == frames[j - 1] + 1)
+                j++;
+
+            free(frames[i], j - i);
+            i = j;
+        }
+    }
+
+    /**
+     * Test if a frame is free.
+     *
+     * @param frame the number of the frame.
+     * @return <tt>true</tt> if the frame is free.
+     */
+    public boolean isFree(int frame) {
+        Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+        return (free[frame >>> 6] & (1L << frame)) != 0;
+    }
+
+    /**
+     * Return the number of frames of physical memory.
+     *
+     * @return the number of frames.
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return the number of free frames.
+     */
+    public int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Return the number of frames in use.
+     *
+     * @return the number of frames in use.
+     */
+    public int getNumUsed() {
+        return numFrames - numFree;
+    }
+
+    /**
+     * Return the number of runs of contiguous free frames.
+     *
+     * @return the number of free runs.
+     */
+    public int getNumFreeRuns() {
+        int runs = 0;
+        long carry = 0;
+
+        // a run starts at each free frame whose predecessor is not free
+        for (int i = 0; i < free.length; i++) {
+            long bits = free[i];
+            runs += Long.bitCount(bits & ~((bits << 1) | carry));
+            carry = bits >>> 63;
+        }
+
+        return runs;
+    }
+
+    /**
+     * Return the length of the longest run of contiguous free frames.
+     *
+     * @return the length of the longest free run.
+     */
+    public int getLargestFreeRun() {
+        int largest = 0;
+
+        for (int first = nextFree(0); first != -1; ) {
+            int end = nextUsed(first);
+            largest = Math.max(largest, end - first);
+            first = nextFree(end);
+        }
+
+        return largest;
+    }
+
+    /**
+     * Return how fragmented the free frames are, as the fraction of them that
+     * lie outside the longest free run. This is 0 when all the free frames
+     * are contiguous, and approaches 1 as they become scattered.
+     *
+     * @return the fragmentation of the free frames.
+     */
+    public double getFragmentation() {
+        if (numFree == 0)
+            return 0;
+
+        return 1 - (double) getLargestFreeRun() / numFree;
+    }
+
+    public String toString() {
+        return numFree + " free, " + getNumUsed() + " used, " +
+            getNumFreeRuns() + " free runs, largest " + getLargestFreeRun();
+    }
+
+    /**
+     * Find a run of <i>n</i> free frames that starts at or after
+     * <i>from</i> and before <i>to</i>. The run may extend past <i>to</i>.
+     */
+    private int findRun(int from, int to, int n) {
+        for (int first = nextFree(from); first != -1 && first < to; ) {
+            int end = nextUsed(first);
+            if (end - first >= n)
+                return first;
+
+            first = nextFree(end);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Return the first free frame at or after <i>from</i>, or -1 if there is
+     * none.
+     */
+    private int nextFree(int from) {
+        if (from >= numFrames)
+            return -1;
+
+        int word = from >>> 6;
+        long bits = free[word] & (-1L << from);
+
+        while (bits == 0) {
+            if (++word == free.length)
+                return -1;
+            bits = free[word];
+        }
+
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Return the first frame in use at or after <i>from</i>, or
+     * <tt>numFrames</tt> if there is none.
+     */
+    private int nextUsed(int from) {
+        if (from >= numFrames)
+            return numFrames;
+
+        int word = from >>> 6;
+        long bits = ~free[word] & (-1L << from);
+
+        while (bits == 0) {
+            if (++word == free.length)
+                return numFrames;
+            bits = ~free[word];
+        }
+
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(bits),
+            numFrames);
+    }
+
+    private void setRange(int first, int n) {
+        for (int end = first + n; first < end; ) {
+            int word = first >>> 6;
+            int count = Math.min(64 - (first & 63), end - first);
+
+            free[word] |= mask(first, count);
+            first += count;
+        }
+    }
+
+    private void clearRange(int first, int n) {
+        for (int end = first + n; first < end; ) {
+            int word = first >>> 6;
+            int count = Math.min(64 - (first & 63), end - first);
+
+            free[word] &= ~mask(first, count);
+            first += count;
+        }
+    }
+
+    /**
+     * Return a mask of <i>count</i> bits within one word, starting at the bit
+     * for <i>first</i>.
+     */
+    private static long mask(int first, int count) {
+        long bits = (count == 64) ? -1L : (1L << count) - 1;
+        return bits << first;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        FrameAllocator frames = new FrameAllocator(200);
+        int[] a = new int[200];
+
+        // a batch is contiguous when a long enough run is free
+        Lib.assertTrue(frames.allocate(a, 0, 70));
+        for (int i = 0; i < 70; i++)
+            Lib.assertTrue(a[i] == i);
+        Lib.assertTrue(frames.getNumUsed() == 70);
+
+        // punch holes, then ask for more than any run holds
+        for (int i = 0; i < 70; i += 2)
+            frames.free(a[i]);
+        Lib.assertTrue(frames.getNumFreeRuns() == 36);
+        Lib.assertTrue(frames.getLargestFreeRun() == 130);
+        Lib.assertTrue(frames.allocateContiguous(131) == -1);
+
+        int[] b = new int[150];
+        Lib.assertTrue(frames.allocate(b, 0, 150));
+        Lib.assertTrue(frames.getNumFree() == 15);
+        Lib.assertTrue(!frames.allocate(b, 0, 16));
+        Lib.assertTrue(frames.getNumFree() == 15);
+
+        boolean[] seen = new boolean[200];
+        for (int i = 0; i < 150; i++) {
+            Lib.assertTrue(!frames.isFree(b[i]) && !seen[b[i]]);
+            seen[b[i]] = true;
+        }
+        for (int i = 1; i < 70; i += 2) {
+            Lib.assertTrue(!seen[a[i]]);
+            seen[a[i]] = true;
+        }
+        for (int i = 0; i < 200; i++)
+            Lib.assertTrue(seen[i] != frames.isFree(i));
+
+        frames.free(b, 0, 150);
+        for (int i = 1; i < 70; i += 2)
+            frames.free(a[i]);
+        Lib.assertTrue(frames.getNumFree() == 200);
+        Lib.assertTrue(frames.getNumFreeRuns() == 1);
+        Lib.assertTrue(frames.getFragmentation() == 0);
+
+        for (int i = 0; i < 200; i++)
+            Lib.assertTrue(frames.allocate() != -1);
+        Lib.assertTrue(frames.allocate() == -1);
+        frames.free(63, 3);
+        Lib.assertTrue(frames.allocateContiguous(3) == 63);
+    }
+
+    private int numFrames;
+    private int numFree;
+    /**
+     * One bit per frame, set if the frame is free. The bits past the last
+     * frame are never set.
+     */
+    private long[] free;
+    /**
+     * The frame at which to start looking for free frames.
+     */
+    private int cursor = 0;
+}
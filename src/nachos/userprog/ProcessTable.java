@@ -0,0 +1,173 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * The kernel's table of processes, by process ID. The table hands out the
+ * process IDs, and takes them back when the processes are removed, to give
+ * out again later.
+ *
+ * <p>
+ * The table is an open-addressing hash map from <tt>int</tt> process IDs to
+ * processes, with linear probing, so lookups do not box the process ID or
+ * walk any lists. Freed process IDs are reused oldest first, so an ID is not
+ * handed out again soon after its last owner was removed.
+ *
+ * <p>
+ * A <tt>ProcessTable</tt> is not synchronized; the caller must make sure
+ * only one thread uses it at a time.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+        keys = new int[initialCapacity];
+        values = new UserProcess[initialCapacity];
+        freePids = new int[initialCapacity];
+    }
+
+    /**
+     * Add a process to this table, and give it a process ID.
+     *
+     * @param process the process to add.
+     * @return the process ID of the process.
+     */
+    public int add(UserProcess process) {
+        Lib.assertTrue(process != null);
+
+        int pid;
+        if (numFreePids > 0) {
+            pid = freePids[firstFreePid];
+            firstFreePid = (firstFreePid + 1) % freePids.length;
+            numFreePids--;
+        } else {
+            pid = nextPid++;
+        }
+
+        if (2 * (size + 1) > keys.length)
+            rehash(2 * keys.length);
+
+        insert(pid, process);
+        size++;
+
+        return pid;
+    }
+
+    /**
+     * Return the process with the specified process ID.
+     *
+     * @param pid the process ID.
+     * @return the process, or <tt>null</tt> if no process in this table has
+     * that process ID.
+     */
+    public UserProcess get(int pid) {
+        for (int i = slot(pid); values[i] != null; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == pid)
+                return values[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove a process from this table. Its process ID may be given to
+     * another process afterwards.
+     *
+     * @param pid the process ID of the process.
+     * @return the process, or <tt>null</tt> if no process in this table has
+     * that process ID.
+     */
+    public UserProcess remove(int pid) {
+        int mask = keys.length - 1;
+
+        int i = slot(pid);
+        while (values[i] != null && keys[i] != pid)
+            i = (i + 1) & mask;
+
+        UserProcess process = values[i];
+        if (process == null)
+            return null;
+
+        // move later entries of the probe sequence back into the gap
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        size--;
+
+        freePid(pid);
+
+        return process;
+    }
+
+    /**
+     * Return the number of processes in this table.
+     *
+     * @return the number of processes.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void freePid(int pid) {
+        if (numFreePids == freePids.length) {
+            int[] newFreePids = new int[2 * freePids.length];
+            for (int i = 0; i < numFreePids; i++)
+                newFreePids[i] = freePids[(firstFreePid + i) % freePids.length];
+
+            freePids = newFreePids;
+            firstFreePid = 0;
+        }
+
+        freePids[(firstFreePid + numFreePids) % freePids.length] = pid;
+        numFreePids++;
+    }
+
+    private void insert(int pid, UserProcess process) {
+        int i = slot(pid);
+        while (values[i] != null)
+            i = (i + 1) & (keys.length - 1);
+
+        keys[i] = pid;
+        values[i] = process;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        UserProcess[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new UserProcess[capacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null)
+                insert(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * Return the slot at which the probe sequence for a process ID starts.
+     */
+    private int slot(int pid) {
+        return (pid * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+    }
+
+    private int[] keys;
+    private UserProcess[] values;
+    private int size = 0;
+
+    /**
+     * The next process ID never handed out, and a FIFO of freed process IDs.
+     */
+    private int nextPid = 0;
+    private int[] freePids;
+    private int firstFreePid = 0, numFreePids = 0;
+
+    private static final int initialCapacity = 16;
+}
@@ -0,0 +1,84 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A file on the kernel's file system that is open in one or more places.
+ * Every open of the same name shares the one <tt>OpenFile</tt> the file
+ * system returned, through its own <tt>OpenFile</tt> with its own file
+ * pointer, and the shared file is only closed when the last of those is.
+ *
+ * <p>
+ * <tt>SharedFile</tt>s are created and counted by
+ * <tt>UserKernel.openFile()</tt>, under the kernel's file lock.
+ *
+ * @see nachos.userprog.UserKernel#openFile
+ */
+class SharedFile {
+    /**
+     * Allocate a new shared file, which no one has opened yet.
+     *
+     * @param name the name of the file.
+     * @param file the file, as opened on the file system.
+     */
+    SharedFile(String name, OpenFile file) {
+        this.name = name;
+        this.file = file;
+    }
+
+    /**
+     * Open this file once more, with a file pointer at the start of the file.
+     *
+     * @return a new <tt>OpenFile</tt> sharing this file.
+     */
+    OpenFile open() {
+        refCount++;
+
+        return new OpenFileWithPosition(file.getFileSystem(), name) {
+            public int read(int pos, byte[] buf, int offset, int length) {
+                return open ? file.read(pos, buf, offset, length) : -1;
+            }
+
+            public int write(int pos, byte[] buf, int offset, int length) {
+                return open ? file.write(pos, buf, offset, length) : -1;
+            }
+
+            public int length() {
+                return open ? file.length() : -1;
+            }
+
+            public void close() {
+                if (open) {
+                    open = false;
+                    UserKernel.closeFile(SharedFile.this);
+                }
+            }
+
+            private boolean open = true;
+        };
+    }
+
+    /**
+     * Drop one reference to this file, closing it when none are left.
+     *
+     * @return <tt>true</tt> if that was the last reference.
+     */
+    boolean release() {
+        Lib.assertTrue(refCount > 0);
+
+        if (--refCount > 0)
+            return false;
+
+        file.close();
+        return true;
+    }
+
+    final String name;
+    private final OpenFile file;
+    private int refCount = 0;
+    /**
+     * Set when this file has been unlinked while open, so it is removed when
+     * the last reference is dropped, and cannot be opened again before then.
+     */
+    boolean unlinked = false;
+}
@@ -3,7 +3,7 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -40,14 +40,13 @@ public class UserKernel extends ThreadedKernel {
 
         pageLock = new Lock();
 
-        int numPhysPages = Machine.processor().getNumPhysPages();
+        frames = new FrameAllocator(Machine.processor().getNumPhysPages());
 
-        /*
-         * Initialize the memory full of available pages
-         */
-        availablePages = new LinkedList<Integer>();
-        for (int i = 0; i < numPhysPages; ++i)
-            availablePages.add(new Integer(i));
+        fileLock = new Lock();
+        openFiles = new HashMap<String, SharedFile>();
+
+        processLock = new Lock();
+        processes = new ProcessTable();
     }
 
     /**
@@ -56,6 +55,9 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
         super.selfTest();
 
+        FrameAllocator.selfTest();
+        FileDescriptorTable.selfTest();
+
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
 
@@ -125,6 +127,8 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        Lib.debug(dbgFrames, "physical memory: " + frames);
+
         super.terminate();
     }
 
@@ -143,14 +147,28 @@ public class UserKernel extends ThreadedKernel {
     /**
      * Takes a page from the available pages.
      *
-     * @return the address of the physical page.
+     * @return the address of the physical page, or -1 if none is available.
      */
     public static int newPage() {
-        int ret = -1;
+        pageLock.acquire();
+        int ret = frames.allocate();
+        pageLock.release();
+
+        return ret;
+    }
 
+    /**
+     * Takes several pages from the available pages at once, in a contiguous
+     * run if possible. Either all the pages are taken, or none are.
+     *
+     * @param ppns   the array to store the physical page numbers in.
+     * @param offset the index at which to store the first page number.
+     * @param n      the number of pages to take.
+     * @return <tt>true</tt> if the pages were taken.
+     */
+    public static boolean newPages(int[] ppns, int offset, int n) {
         pageLock.acquire();
-        if (availablePages.size() > 0)
-            ret = availablePages.removeFirst().intValue();
+        boolean ret = frames.allocate(ppns, offset, n);
         pageLock.release();
 
         return ret;
@@ -158,18 +176,125 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Gives a page back to the free physical memory.
+     *
+     * @return <tt>true</tt> if the page was in use.
      */
     public static boolean deletePage(int ppn) {
         boolean ret = false;
 
         pageLock.acquire();
-        availablePages.add(new Integer(ppn));
-        ret = true;
+        if (ppn >= 0 && ppn < frames.getNumFrames() && !frames.isFree(ppn)) {
+            frames.free(ppn);
+            ret = true;
+        }
         pageLock.release();
 
         return ret;
     }
 
+    /**
+     * Gives several pages, all of which must be in use, back to the free
+     * physical memory at once.
+     *
+     * @param ppns   the array holding the physical page numbers.
+     * @param offset the index of the first page number.
+     * @param n      the number of pages to give back.
+     */
+    public static void deletePages(int[] ppns, int offset, int n) {
+        pageLock.acquire();
+        frames.free(ppns, offset, n);
+        pageLock.release();
+    }
+
+    /**
+     * Returns the number of pages of physical memory that are available.
+     *
+     * @return the number of free physical pages.
+     */
+    public static int getNumFreePages() {
+        pageLock.acquire();
+        int ret = frames.getNumFree();
+        pageLock.release();
+
+        return ret;
+    }
+
+    /**
+     * Opens a file on the file system. Opening a file that is already open
+     * shares the underlying file, but gives the new <tt>OpenFile</tt> its own
+     * file pointer. A file that was unlinked while open cannot be opened
+     * again until it has been removed.
+     *
+     * @param name   the name of the file.
+     * @param create <tt>true</tt> to create the file if it does not exist.
+     * @return the open file, or <tt>null</tt> if it could not be opened.
+     */
+    public static OpenFile openFile(String name, boolean create) {
+        fileLock.acquire();
+
+        SharedFile shared = openFiles.get(name);
+        if (shared == null) {
+            OpenFile file = fileSystem.open(name, false);
+            if (file == null && create)
+                file = fileSystem.open(name, true);
+
+            if (file != null) {
+                shared = new SharedFile(name, file);
+                openFiles.put(name, shared);
+            }
+        } else if (shared.unlinked) {
+            shared = null;
+        }
+
+        OpenFile ret = (shared != null) ? shared.open() : null;
+
+        fileLock.release();
+        return ret;
+    }
+
+    /**
+     * Called when an <tt>OpenFile</tt> returned by <tt>openFile()</tt> is
+     * closed. Closes the underlying file once nothing else has it open, and
+     * removes it then if it was unlinked.
+     */
+    static void closeFile(SharedFile shared) {
+        fileLock.acquire();
+
+        if (shared.release()) {
+            openFiles.remove(shared.name);
+            if (shared.unlinked)
+                fileSystem.remove(shared.name);
+        }
+
+        fileLock.release();
+    }
+
+    /**
+     * Removes a file from the file system. If the file is open, it is only
+     * removed once it has been closed everywhere.
+     *
+     * @param name the name of the file.
+     * @return <tt>true</tt> if the file was, or will be, removed.
+     */
+    public static boolean unlinkFile(String name) {
+        boolean ret;
+
+        fileLock.acquire();
+
+        SharedFile shared = openFiles.get(name);
+        if (shared == null) {
+            ret = fileSystem.remove(name);
+        } else if (shared.unlinked) {
+            ret = false;
+        } else {
+            shared.unlinked = true;
+            ret = true;
+        }
+
+        fileLock.release();
+        return ret;
+    }
+
     public String absoluteFileName(String s) {
         return s;
     }
@@ -185,7 +310,23 @@ public class UserKernel extends ThreadedKernel {
     private static Lock pageLock;
 
     /**
-     * Tracks the available pages in virtual memory
+     * Tracks the available pages in physical memory
+     */
+    private static FrameAllocator frames;
+
+    /**
+     * The processes that have not been reaped, by process ID, and the lock
+     * that protects the table and the links between parents and children.
      */
-    private static LinkedList<Integer> availablePages;
+    static ProcessTable processes;
+    static Lock processLock;
+
+    private static Lock fileLock;
+
+    /**
+     * The files on the file system that are open, by name.
+     */
+    private static HashMap<String, SharedFile> openFiles;
+
+    private static final char dbgFrames = 'f';
 }
@@ -23,28 +23,20 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        int size = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[size];
-        for (int i = 0; i < size; ++i) {
-            pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
-        }
+        pageTable = new TranslationEntry[0];
 
-        descriptors = new OpenFile[16];
+        descriptors = new FileDescriptorTable(maxOpenFiles);
         boolean inStatus = Machine.interrupt().disable();
-        counterLock = new Lock();
-        counterLock.acquire();
-        pID = counter++;
-        counterLock.release();
+        UserKernel.processLock.acquire();
+        pID = UserKernel.processes.add(this);
+        UserKernel.processLock.release();
         stdin = UserKernel.console.openForReading();
         stdout = UserKernel.console.openForWriting();
-        descriptors[0] = stdin;
-        descriptors[1] = stdout;
+        descriptors.add(stdin);
+        descriptors.add(stdout);
         Machine.interrupt().restore(inStatus);
         parent = null;
-        children = new LinkedList<UserProcess>();
-        childrenExitStatus = new HashMap<Integer, Integer>();
-        statusLock = new Lock();
-
+        childExited = new Condition2(UserKernel.processLock);
     }
 
     /**
@@ -104,67 +96,55 @@ public class UserProcess {
      * @param desiredPages the amount of physical pages to allocate
      */
     protected boolean allocate(int vpn, int desiredPages, boolean readOnly) {
+        if (vpn + desiredPages > Machine.processor().getNumPhysPages())
+            return false;
 
         /*
-         * Tracks the allocated pages.
-         * We allocate one page at a time and add it to this LinkedList.
-         * If we encounter any error, we can revert to previous state
-         * using this LinkedList and return failure.
+         * Take all the physical pages in one go, so a section or the stack
+         * gets a contiguous run of memory when one is free. Either all of
+         * them are allocated or none are, so there is nothing to undo.
          */
-        LinkedList<TranslationEntry> allocated = new LinkedList<TranslationEntry>();
-
-        for (int i = 0; i < desiredPages; ++i) {
-            /*
-             * This check seems like it should outside this foor loop.
-             * But I'm not gonna mess with it since it's already working.
-             */
-            if (vpn >= pageTable.length)
-                return false;
-
-            // Allocate a physical page
-            int ppn = UserKernel.newPage();
-            if (ppn == -1) {
-                Lib.debug(dbgProcess, "\tcannot allocate new page");
-
-                /*
-                 * Encountered error. Need to deallocate all the pages
-                 * we previously allocated in this loop.
-                 */
-                for (TranslationEntry te : allocated) {
-                    pageTable[te.vpn] = new TranslationEntry(te.vpn, 0, false, false, false, false);
-                    UserKernel.deletePage(te.ppn);
-                    --numPages;
-                }
-
-                return false;
-
-            } else {
-                TranslationEntry a = new TranslationEntry(vpn + i, ppn, true, readOnly, false, false);
-
-                /*
-                 * Keep track of the allocated physical pages.
-                 * We might need to deallocate them.
-                 */
-                allocated.add(a);
-
-                /*
-                 * Update the process's page table
-                 * with the newly allocated physical page.
-                 */
-                pageTable[vpn + i] = a;
-                ++numPages;
-            }
+        int[] ppns = new int[desiredPages];
+        if (!UserKernel.newPages(ppns, 0, desiredPages)) {
+            Lib.debug(dbgProcess, "\tcannot allocate new page");
+            return false;
         }
 
+        if (vpn + desiredPages > pageTable.length)
+            growPageTable(vpn + desiredPages);
+
+        for (int i = 0; i < desiredPages; ++i)
+            pageTable[vpn + i] = new TranslationEntry(vpn + i, ppns[i], true, readOnly, false, false);
+        numPages += desiredPages;
+
         return true;
     }
 
+    /**
+     * Grows the page table so it holds at least the specified number of
+     * entries. The table grows by doubling, up to the size of physical
+     * memory, and the new entries are left empty.
+     */
+    private void growPageTable(int size) {
+        int length = Math.max(size, Math.min(2 * pageTable.length,
+            Machine.processor().getNumPhysPages()));
+        pageTable = Arrays.copyOf(pageTable, length);
+
+        if (UserKernel.currentProcess() == this)
+            Machine.processor().setPageTable(pageTable);
+    }
+
     protected void releaseResource() {
+        int[] ppns = new int[pageTable.length];
+        int n = 0;
+
         for (int i = 0; i < pageTable.length; ++i)
-            if (pageTable[i].valid) {
-                UserKernel.deletePage(pageTable[i].ppn);
-                pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
+            if (pageTable[i] != null) {
+                if (pageTable[i].valid)
+                    ppns[n++] = pageTable[i].ppn;
+                pageTable[i] = null;
             }
+        UserKernel.deletePages(ppns, 0, n);
         numPages = 0;
     }
 
@@ -252,7 +232,8 @@ public class UserProcess {
         int startVirtualPage = Machine.processor().pageFromAddress(vaddr);
         int endVirtualPage = Machine.processor().pageFromAddress(endVAddr);
         for (int i = startVirtualPage; i <= endVirtualPage; i++) {
-            if (!lookUpPageTable(i).valid) {
+            TranslationEntry entry = lookUpPageTable(i);
+            if (entry == null || !entry.valid) {
                 break;
             }
             int pageStartVirtualAddress = Machine.processor().makeAddress(i, 0);
@@ -272,7 +253,7 @@ public class UserProcess {
                 addrOffset = 0;
                 amount = pageSize;
             }
-            int paddr = Machine.processor().makeAddress(lookUpPageTable(i).ppn, addrOffset);
+            int paddr = Machine.processor().makeAddress(entry.ppn, addrOffset);
             System.arraycopy(memory, paddr, data, offset + transferredCounter, amount);
             transferredCounter += amount;
             //		pageTable[i].used=true;
@@ -325,7 +306,8 @@ public class UserProcess {
         int startVirtualPage = Machine.processor().pageFromAddress(vaddr);
         int endVirtualPage = Machine.processor().pageFromAddress(endVAddr);
         for (int i = startVirtualPage; i <= endVirtualPage; i++) {
-            if (!lookUpPageTable(i).valid || lookUpPageTable(i).readOnly) {
+            TranslationEntry entry = lookUpPageTable(i);
+            if (entry == null || !entry.valid || entry.readOnly) {
                 break;
             }
             int pageStartVirtualAddress = Machine.processor().makeAddress(i, 0);
@@ -345,7 +327,7 @@ public class UserProcess {
                 addrOffset = 0;
                 amount = pageSize;
             }
-            int paddr = Machine.processor().makeAddress(lookUpPageTable(i).ppn, addrOffset);
+            int paddr = Machine.processor().makeAddress(entry.ppn, addrOffset);
             System.arraycopy(data, offset + transferredCounter, memory, paddr, amount);
             transferredCounter += amount;
             //			pageTable[i].used=true;
@@ -357,6 +339,49 @@ public class UserProcess {
 
     }
 
+    /**
+     * Transfer data between an open file and this process's virtual memory,
+     * without an intermediate buffer. The user buffer is walked a page at a
+     * time, and each page's span of main memory is handed to the file to read
+     * into or write from. The transfer stops at the first page that is not
+     * mapped (or, when reading, is read-only), or when the file transfers
+     * fewer bytes than asked for.
+     *
+     * @param file   the file to transfer data to or from.
+     * @param vaddr  the first byte of virtual memory to transfer.
+     * @param length the number of bytes to transfer.
+     * @param read   <tt>true</tt> to read from the file into memory,
+     *               <tt>false</tt> to write from memory to the file.
+     * @return the number of bytes transferred, or -1 if the file failed
+     * before any bytes were transferred.
+     */
+    protected int transferFile(OpenFile file, int vaddr, int length, boolean read) {
+        byte[] memory = Machine.processor().getMemory();
+
+        int count = 0;
+        while (count < length) {
+            int address = vaddr + count;
+            TranslationEntry entry = lookUpPageTable(Processor.pageFromAddress(address));
+            if (entry == null || !entry.valid || (read && entry.readOnly))
+                break;
+
+            int pageOffset = Processor.offsetFromAddress(address);
+            int amount = Math.min(length - count, pageSize - pageOffset);
+            int paddr = Processor.makeAddress(entry.ppn, pageOffset);
+
+            int transferred = read ? file.read(memory, paddr, amount)
+                : file.write(memory, paddr, amount);
+            if (transferred == -1)
+                return (count == 0) ? -1 : count;
+
+            count += transferred;
+            if (transferred < amount)
+                break;
+        }
+
+        return count;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -370,7 +395,8 @@ public class UserProcess {
     protected boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        // share the executable with other processes running the same program
+        OpenFile executable = UserKernel.openFile(name, false);
         if (executable == null) {
             Lib.debug(dbgProcess, "\topen failed");
             return false;
@@ -388,15 +414,10 @@ public class UserProcess {
         numPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
-            if (section.getFirstVPN() != numPages) {
-                coff.close();
-                Lib.debug(dbgProcess, "\tfragmented executable");
-                return false;
-            }
-            if (!allocate(numPages, section.getLength(), section.isReadOnly())) {
-                releaseResource();
-                return false;
-            }
+            if (section.getFirstVPN() != numPages)
+                return loadFailed("fragmented executable");
+            if (!allocate(numPages, section.getLength(), section.isReadOnly()))
+                return loadFailed("insufficient physical memory");
         }
 
         // make sure the argv array will fit in one page
@@ -407,30 +428,23 @@ public class UserProcess {
             // NOTE: 4 bytes for argv[] pointer; then string plus one for null byte
             argsSize += 4 + argv[i].length + 1;
         }
-        if (argsSize > pageSize) {
-            coff.close();
-            Lib.debug(dbgProcess, "\targuments too long");
-            return false;
-        }
+        if (argsSize > pageSize)
+            return loadFailed("arguments too long");
 
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
         // next comes the stack; stack pointer initially points to top of it
-        if (!allocate(numPages, stackPages, false)) {
-            releaseResource();
-            return false;
-        }
+        if (!allocate(numPages, stackPages, false))
+            return loadFailed("insufficient physical memory");
         initialSP = numPages * pageSize;
 
         // and finally reserve 1 page for arguments
-        if (!allocate(numPages, 1, false)) {
-            releaseResource();
-            return false;
-        }
+        if (!allocate(numPages, 1, false))
+            return loadFailed("insufficient physical memory");
 
         if (!loadSections())
-            return false;
+            return loadFailed("sections not loaded");
 
         // store arguments in last page
         int entryOffset = (numPages - 1) * pageSize;
@@ -452,19 +466,35 @@ public class UserProcess {
         return true;
     }
 
+    /**
+     * Undo a load that failed after the executable was opened: free the
+     * pages allocated so far, and close the executable, so it can be removed
+     * if it was unlinked.
+     *
+     * @param reason why the load failed.
+     * @return <tt>false</tt>.
+     */
+    private boolean loadFailed(String reason) {
+        Lib.debug(dbgProcess, "\t" + reason);
+
+        releaseResource();
+        coff.close();
+        coff = null;
+
+        return false;
+    }
+
     /**
      * Allocates memory for this process, and loads the COFF sections into
      * memory. If this returns successfully, the process will definitely be run
-     * (this is the last step in process initialization that can fail).
+     * (this is the last step in process initialization that can fail). If
+     * this fails, <tt>load()</tt> frees the memory and closes the executable.
      *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+        if (numPages > Machine.processor().getNumPhysPages())
             return false;
-        }
 
         // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
@@ -491,12 +521,7 @@ public class UserProcess {
      */
     protected void unloadSections() {
         releaseResource();
-        for (int i = 0; i < 16; i++) {
-            if (descriptors[i] != null) {
-                descriptors[i].close();
-                descriptors[i] = null;
-            }
-        }
+        descriptors.closeAll();
         coff.close();
 
     }
@@ -564,19 +589,37 @@ public class UserProcess {
      * @param status the exit status of this process
      */
     private int handleExit(int status) {
-        if (parent != null) {
-            parent.statusLock.acquire();
-            parent.childrenExitStatus.put(pID, status);
-            parent.statusLock.release();
-            //parent.children.remove(this);
-        }
         unloadSections();
-        int childrenNum = children.size();
-        for (int i = 0; i < childrenNum; i++) {
-            UserProcess child = children.removeFirst();
-            child.parent = null;
+
+        UserKernel.processLock.acquire();
+
+        // disown the children, and forget those that have already exited
+        while (firstChild != null) {
+            UserProcess child = firstChild;
+            removeChild(child);
+            if (child.exited)
+                UserKernel.processes.remove(child.pID);
+        }
+
+        exited = true;
+        exitStatus = status;
+
+        if (parent != null) {
+            // queue this process for the parent to collect
+            prevExited = parent.lastExited;
+            if (prevExited != null)
+                prevExited.nextExited = this;
+            else
+                parent.firstExited = this;
+            parent.lastExited = this;
+
+            parent.childExited.wake();
+        } else {
+            UserKernel.processes.remove(pID);
         }
 
+        UserKernel.processLock.release();
+
         if (pID == 0) {
             Kernel.kernel.terminate();
         } else {
@@ -656,18 +699,25 @@ public class UserProcess {
         }
 
         UserProcess child = UserProcess.newUserProcess();
+
+        // adopt the child first, in case it exits before execute() returns
+        UserKernel.processLock.acquire();
+        addChild(child);
+        UserKernel.processLock.release();
+
         boolean isSuccessful = child.execute(fileName, args);
 
         if (!isSuccessful) {
             Lib.debug(dbgProcess, "handleExec: Execute child process failed");
+
+            UserKernel.processLock.acquire();
+            removeChild(child);
+            UserKernel.processes.remove(child.pID);
+            UserKernel.processLock.release();
             return -1;
         }
 
-        child.parent = this;
-        this.children.add(child);
-        int id = child.pID;
-
-        return id;
+        return child.pID;
     }
 
     /**
@@ -697,46 +747,137 @@ public class UserProcess {
             return -1;
         }
 
-        UserProcess child = null;
-        int childrenNum = children.size();
-        for (int i = 0; i < childrenNum; i++) {
-            if (children.get(i).pID == pID) {
-                child = children.get(i);
-                break;
-            }
-        }
+        UserKernel.processLock.acquire();
 
         // a process can only call join() on its childs
-        if (child == null) {
+        UserProcess child = UserKernel.processes.get(pID);
+        if (child == null || child.parent != this) {
+            UserKernel.processLock.release();
             Lib.debug(dbgProcess, "handleJoin: pID is not the child");
             return -1;
         }
 
-        child.thread.join();
+        while (!child.exited)
+            childExited.sleep();
 
-        child.parent = null;
-        children.remove(child);
+        reap(child);
 
-        statusLock.acquire();
-        Integer status = childrenExitStatus.get(child.pID);
-        statusLock.release();
+        UserKernel.processLock.release();
 
-        if (status == null) {
-            Lib.debug(dbgProcess, "handleJoin: Cannot find the exit status of the child");
-            return 0;
-        } else {
-            //status int 32bits
-            byte[] buffer = new byte[4];
-            buffer = Lib.bytesFromInt(status);
-            int count = writeVirtualMemory(statusVAddr, buffer);
+        return storeExitStatus(child, statusVAddr) ? 1 : 0;
+    }
 
-            if (count == 4) {
-                return 1;
-            } else {
-                Lib.debug(dbgProcess, "handleJoin: Could not load the exit status of the child");
-                return 0;
-            }
+    /**
+     * Suspends execution of the current process until any of its child
+     * processes has exited, and disowns that child, as join() would.
+     *
+     * If children have already exited by the time of the call, returns
+     * immediately, collecting the child that exited first. If the process
+     * has no children, returns -1 immediately.
+     *
+     * status points to an integer where the exit status of the child process
+     * will be stored, as for join().
+     *
+     * @param statusVAddr the address to store child's exit status at
+     * @return the process ID of the child, or -1 if there are no children
+     */
+    private int handleWait(int statusVAddr) {
+        if (statusVAddr < 0) {
+            return -1;
+        }
+
+        UserKernel.processLock.acquire();
+
+        if (firstChild == null) {
+            UserKernel.processLock.release();
+            Lib.debug(dbgProcess, "handleWait: No child to wait for");
+            return -1;
         }
+
+        while (firstExited == null)
+            childExited.sleep();
+
+        UserProcess child = firstExited;
+        reap(child);
+
+        UserKernel.processLock.release();
+
+        storeExitStatus(child, statusVAddr);
+        return child.pID;
+    }
+
+    /**
+     * Write the exit status of a child that has been reaped to this process's
+     * memory.
+     *
+     * @return <tt>true</tt> if the status was written.
+     */
+    private boolean storeExitStatus(UserProcess child, int statusVAddr) {
+        //status int 32bits
+        byte[] buffer = Lib.bytesFromInt(child.exitStatus);
+        int count = writeVirtualMemory(statusVAddr, buffer);
+
+        if (count != 4) {
+            Lib.debug(dbgProcess, "handleJoin: Could not load the exit status of the child");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Make a process a child of this process. The caller must hold the
+     * process lock.
+     */
+    private void addChild(UserProcess child) {
+        child.parent = this;
+        child.prevSibling = null;
+        child.nextSibling = firstChild;
+        if (firstChild != null)
+            firstChild.prevSibling = child;
+        firstChild = child;
+    }
+
+    /**
+     * Disown a child of this process, taking it off the list of children and,
+     * if it has exited, off the list of exited children. The caller must hold
+     * the process lock.
+     */
+    private void removeChild(UserProcess child) {
+        Lib.assertTrue(child.parent == this);
+
+        if (child.prevSibling != null)
+            child.prevSibling.nextSibling = child.nextSibling;
+        else
+            firstChild = child.nextSibling;
+        if (child.nextSibling != null)
+            child.nextSibling.prevSibling = child.prevSibling;
+
+        if (child.exited) {
+            if (child.prevExited != null)
+                child.prevExited.nextExited = child.nextExited;
+            else
+                firstExited = child.nextExited;
+            if (child.nextExited != null)
+                child.nextExited.prevExited = child.prevExited;
+            else
+                lastExited = child.prevExited;
+        }
+
+        child.parent = null;
+        child.nextSibling = child.prevSibling = null;
+        child.nextExited = child.prevExited = null;
+    }
+
+    /**
+     * Disown a child that has exited, and remove it from the process table,
+     * freeing its process ID. The caller must hold the process lock.
+     */
+    private void reap(UserProcess child) {
+        Lib.assertTrue(child.exited);
+
+        removeChild(child);
+        UserKernel.processes.remove(child.pID);
     }
 
     /**
@@ -771,38 +912,25 @@ public class UserProcess {
             return -1;
         }
 
-        if (descriptor < 0 || descriptor > 15) {
-            Lib.debug(dbgProcess, "handleRead: Descriptor out of range");
-            return -1;
-        }
-
         if (size < 0) {
             Lib.debug(dbgProcess, "handleRead: Size to read cannot be negative");
             return -1;
         }
 
-        OpenFile file;
-        if (descriptors[descriptor] == null) {
+        OpenFile file = descriptors.get(descriptor);
+        if (file == null) {
             Lib.debug(dbgProcess, "handleRead: File doesn't exist in the descriptor table");
             return -1;
-        } else {
-            file = descriptors[descriptor];
         }
 
-        // read from the file
-        int length = 0;
-        byte[] reader = new byte[size];
-        length = file.read(reader, 0, size);
+        // read from the file straight into the buffer
+        int count = transferFile(file, bufferVAddr, size, true);
 
-        if (length == -1) {
+        if (count == -1) {
             Lib.debug(dbgProcess, "handleRead: Error occurred when try to read file");
             return -1;
         }
 
-        // write to the buffer
-        int count = 0;
-        count = writeVirtualMemory(bufferVAddr, reader, 0, length);
-
         return count;
     }
 
@@ -837,32 +965,19 @@ public class UserProcess {
             return -1;
         }
 
-        if (descriptor < 0 || descriptor > 15) {
-            Lib.debug(dbgProcess, "hanleWirte: Descriptor out of range");
-            return -1;
-        }
-
         if (size < 0) {
             Lib.debug(dbgProcess, "handleWrite: Size to write cannot be negative");
             return -1;
         }
 
-        OpenFile file;
-        if (descriptors[descriptor] == null) {
+        OpenFile file = descriptors.get(descriptor);
+        if (file == null) {
             Lib.debug(dbgProcess, "handleWrite: File doesn't exist in the descriptor table");
             return -1;
-        } else {
-            file = descriptors[descriptor];
         }
 
-        // read from the virtual memory
-        int length = 0;
-        byte[] writer = new byte[size];
-        length = readVirtualMemory(bufferVAddr, writer, 0, size);
-
-        // write to the file
-        int count = 0;
-        count = file.write(writer, 0, length);
+        // write to the file straight from the buffer
+        int count = transferFile(file, bufferVAddr, size, false);
 
         if (count == -1) {
             Lib.debug(dbgProcess, "handleWrite: Error occur when read file");
@@ -872,6 +987,85 @@ public class UserProcess {
         return count;
     }
 
+    /**
+     * Attempt to open the named disk file and return a file descriptor that
+     * can be used to access the file. If create is true, the file is created
+     * if it does not exist.
+     *
+     * The file gets the lowest free file descriptor. Opening a file that is
+     * already open, in this process or another, shares the file, but gives
+     * the new descriptor its own file position. A file that has been unlinked
+     * cannot be opened until the last descriptor referring to it is closed.
+     *
+     * @param nameVAddr the virtual address of the name of the file
+     * @param create whether to create the file if it does not exist
+     * @return the new file descriptor, or -1 if an error occurred
+     */
+    private int handleOpen(int nameVAddr, boolean create) {
+        String fileName = readVirtualMemoryString(nameVAddr, 256);
+        if (fileName == null) {
+            Lib.debug(dbgProcess, "handleOpen: Read filename failed");
+            return -1;
+        }
+
+        OpenFile file = UserKernel.openFile(absoluteFileName(fileName), create);
+        if (file == null) {
+            Lib.debug(dbgProcess, "handleOpen: Cannot open " + fileName);
+            return -1;
+        }
+
+        int descriptor = descriptors.add(file);
+        if (descriptor == -1) {
+            Lib.debug(dbgProcess, "handleOpen: Too many open files");
+            file.close();
+            return -1;
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Close a file descriptor, so that it no longer refers to any file or
+     * stream and may be reused. If the descriptor is the last reference to a
+     * file which has been unlinked, the file is removed.
+     *
+     * @param descriptor the file descriptor to close
+     * @return 0 on success, or -1 if the descriptor is not open
+     */
+    private int handleClose(int descriptor) {
+        OpenFile file = descriptors.remove(descriptor);
+        if (file == null) {
+            Lib.debug(dbgProcess, "handleClose: File doesn't exist in the descriptor table");
+            return -1;
+        }
+
+        file.close();
+        return 0;
+    }
+
+    /**
+     * Delete a file from the file system. If no process has the file open,
+     * it is removed immediately; otherwise it is removed when the last file
+     * descriptor referring to it is closed.
+     *
+     * @param nameVAddr the virtual address of the name of the file
+     * @return 0 on success, or -1 if an error occurred
+     */
+    private int handleUnlink(int nameVAddr) {
+        String fileName = readVirtualMemoryString(nameVAddr, 256);
+        if (fileName == null) {
+            Lib.debug(dbgProcess, "handleUnlink: Read filename failed");
+            return -1;
+        }
+
+        if (!UserKernel.unlinkFile(absoluteFileName(fileName))) {
+            Lib.debug(dbgProcess, "handleUnlink: Cannot remove " + fileName);
+            return -1;
+        }
+
+        return 0;
+    }
+
     protected static final int  syscallHalt   = 0;
     protected static final int  syscallExit   = 1;
     protected static final int  syscallExec   = 2;
@@ -882,6 +1076,7 @@ public class UserProcess {
     protected static final int  syscallWrite  = 7;
     protected static final int  syscallClose  = 8;
     protected static final int  syscallUnlink = 9;
+    protected static final int  syscallWait   = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -935,6 +1130,10 @@ public class UserProcess {
      * <td>9</td>
      * <td><tt>int  unlink(char *name);</tt></td>
      * </tr>
+     * <tr>
+     * <td>13</td>
+     * <td><tt>int  wait(int *status);</tt></td>
+     * </tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -949,12 +1148,24 @@ public class UserProcess {
             case syscallHalt:
                 return handleHalt();
 
+            case syscallCreate:
+                return handleOpen(a0, true);
+
+            case syscallOpen:
+                return handleOpen(a0, false);
+
             case syscallRead:
                 return handleRead(a0, a1, a2);
 
             case syscallWrite:
                 return handleWrite(a0, a1, a2);
 
+            case syscallClose:
+                return handleClose(a0);
+
+            case syscallUnlink:
+                return handleUnlink(a0);
+
             case syscallExec:
                 return handleExec(a0, a1, a2);
 
@@ -962,6 +1173,9 @@ public class UserProcess {
                 Lib.debug(dbgProcess, "Join called from process " + pID);
                 return handleJoin(a0, a1);
 
+            case syscallWait:
+                return handleWait(a0);
+
             case syscallExit:
                 return handleExit(a0);
 
@@ -1005,7 +1219,9 @@ public class UserProcess {
     protected Coff coff;
 
     /**
-     * This process's page table.
+     * This process's page table. It only covers the pages that have been
+     * allocated, and is <tt>null</tt> wherever no page is mapped, so its size
+     * grows with the process rather than with physical memory.
      */
     protected TranslationEntry[] pageTable;
     /**
@@ -1024,17 +1240,32 @@ public class UserProcess {
     protected static final int pageSize = Processor.pageSize;
     protected static final char dbgProcess = 'a';
 
-    protected Lock counterLock = new Lock();
+    protected FileDescriptorTable descriptors;
 
-    protected OpenFile[] descriptors;
+    /**
+     * The most files a process can have open at once.
+     */
+    protected static final int maxOpenFiles = Config.getInteger("Kernel.maxOpenFiles", 1024);
 
     protected UserProcess parent;
-    protected LinkedList<UserProcess> children;
+    /**
+     * This process's children that have not been reaped, in a list linked
+     * through <tt>nextSibling</tt> and <tt>prevSibling</tt>, and those of them
+     * that have exited, oldest first, in a list linked through
+     * <tt>nextExited</tt> and <tt>prevExited</tt>. All of these are protected
+     * by the process lock.
+     */
+    protected UserProcess firstChild, nextSibling, prevSibling;
+    protected UserProcess firstExited, lastExited, nextExited, prevExited;
+    /**
+     * Woken when a child of this process exits.
+     */
+    protected Condition2 childExited;
+
+    protected boolean exited = false;
+    protected int exitStatus;
 
-    protected HashMap<Integer, Integer> childrenExitStatus;
-    protected Lock statusLock;
     protected UThread thread;
-    protected static int counter = 0;
     protected int pID;
 
     protected OpenFile stdin;